@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 
 import hudson.Extension;
@@ -25,6 +24,8 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import org.jenkinsci.lib.envinject.EnvInjectLogger;
 import org.jenkinsci.plugins.envinject.service.EnvInjectActionSetter;
 import org.jenkinsci.plugins.envinject.service.EnvInjectEnvVars;
+import org.jenkinsci.plugins.envinject.service.EnvInjectTimingRecorder;
+import org.jenkinsci.plugins.envinject.util.LayeredEnvVars;
 import org.jenkinsci.plugins.envinject.util.RunHelper;
 import org.kohsuke.stapler.DataBoundConstructor;
 
@@ -78,35 +79,45 @@ public class EnvInjectBuildWrapper extends BuildWrapper implements Serializable
         FilePath ws = build.getWorkspace();
         EnvInjectActionSetter envInjectActionSetter = new EnvInjectActionSetter(ws);
         EnvInjectEnvVars envInjectEnvVarsService = new EnvInjectEnvVars(logger);
+        EnvInjectTimingRecorder timings = new EnvInjectTimingRecorder(build, "Build wrapper");
 
         try {
+            EnvInjectTimingRecorder.Timing timing = timings.start(EnvInjectTimingRecorder.Phase.BUILD_VARIABLES);
             Map<String, String> previousEnvVars = RunHelper.getEnvVarsPreviousSteps(build, logger);
-            Map<String, String> injectedEnvVars = new HashMap<String, String>(previousEnvVars);
+            timing.stop();
+            LayeredEnvVars.Overlay injectedEnvVarsOverlay = LayeredEnvVars.of(previousEnvVars).newOverlay();
 
             //Add workspace if not set
-            if (ws != null && injectedEnvVars.get(EnvInjectConstants.WORKSPACE) == null) {
-                injectedEnvVars.put(EnvInjectConstants.WORKSPACE, ws.getRemote());
+            if (ws != null && injectedEnvVarsOverlay.get(EnvInjectConstants.WORKSPACE) == null) {
+                injectedEnvVarsOverlay.put(EnvInjectConstants.WORKSPACE, ws.getRemote());
             }
 
             //Add SCM variables if not set
             SCM scm = build.getProject().getScm();
             if (scm != null) {
-                scm.buildEnvironment(build, injectedEnvVars);
+                scm.buildEnvironment(build, injectedEnvVarsOverlay);
             }
+            LayeredEnvVars injectedEnvVars = injectedEnvVarsOverlay.toView();
 
+            timing = timings.start(EnvInjectTimingRecorder.Phase.GROOVY_SCRIPT);
             Map<String, String> groovyMapEnvVars = envInjectEnvVarsService.executeGroovyScript(logger, info.getSecureGroovyScript(), injectedEnvVars);
+            timing.stop();
 
             //Get result variables
+            timing = timings.start(EnvInjectTimingRecorder.Phase.PROPERTIES);
             final Map<String, String> emptyVars = Collections.emptyMap();
             final Map<String, String> propertiesEnvVars = (ws != null)
                     ? envInjectEnvVarsService.getEnvVarsFileProperty(ws, logger, info.getPropertiesFilePath(), info.getPropertiesContentMap(previousEnvVars), injectedEnvVars)
                     : emptyVars;
+            timing.stop();
 
             //Resolve variables
-            final Map<String, String> resultVariables = envInjectEnvVarsService.getMergedVariables(injectedEnvVars, propertiesEnvVars, groovyMapEnvVars, emptyVars);
+            final Map<String, String> resultVariables = envInjectEnvVarsService.getMergedVariablesView(injectedEnvVars, propertiesEnvVars, groovyMapEnvVars, emptyVars);
 
             //Execute script info
+            timing = timings.start(EnvInjectTimingRecorder.Phase.SCRIPT);
             int resultCode = envInjectEnvVarsService.executeScript(info.getScriptContent(), ws, info.getScriptFilePath(), resultVariables, launcher, listener);
+            timing.stop();
             if (resultCode != 0) {
                 logger.info("Fail the build.");
                 build.setResult(Result.FAILURE);
@@ -114,7 +125,9 @@ public class EnvInjectBuildWrapper extends BuildWrapper implements Serializable
             }
 
             //Add or get the existing action to add new env vars
+            timing = timings.start(EnvInjectTimingRecorder.Phase.ACTION);
             envInjectActionSetter.addEnvVarsToRun(build, resultVariables);
+            timing.stop();
 
             return new Environment() {
                 @Override
@@ -137,6 +150,8 @@ public class EnvInjectBuildWrapper extends BuildWrapper implements Serializable
                 throw (Error)throwable;
             }
             return null;
+        } finally {
+            timings.finish();
         }
     }
 
@@ -13,13 +13,16 @@ import hudson.tasks.Builder;
 import org.jenkinsci.lib.envinject.EnvInjectLogger;
 import org.jenkinsci.plugins.envinject.service.EnvInjectActionSetter;
 import org.jenkinsci.plugins.envinject.service.EnvInjectEnvVars;
+import org.jenkinsci.plugins.envinject.service.EnvInjectTimingRecorder;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import org.jenkinsci.plugins.envinject.util.LayeredEnvVars;
 import org.jenkinsci.plugins.envinject.util.RunHelper;
 
 /**
@@ -49,47 +52,57 @@ public class EnvInjectBuilder extends Builder implements Serializable {
         FilePath ws = build.getWorkspace();
         EnvInjectActionSetter envInjectActionSetter = new EnvInjectActionSetter(ws);
         EnvInjectEnvVars envInjectEnvVarsService = new EnvInjectEnvVars(logger);
+        EnvInjectTimingRecorder timings = new EnvInjectTimingRecorder(build, "Build step");
 
         try {
+            EnvInjectTimingRecorder.Timing timing = timings.start(EnvInjectTimingRecorder.Phase.BUILD_VARIABLES);
             Map<String, String> previousEnvVars = RunHelper.getEnvVarsPreviousSteps(build, logger);
+            timing.stop();
 
             //Get current envVars
-            Map<String, String> variables = new HashMap<String, String>(previousEnvVars);
+            LayeredEnvVars.Overlay variablesOverlay = LayeredEnvVars.of(previousEnvVars).newOverlay();
 
             //Add workspace if not set
             if (ws != null) {
-                if (variables.get("WORKSPACE") == null) {
-                    variables.put("WORKSPACE", ws.getRemote());
+                if (variablesOverlay.get("WORKSPACE") == null) {
+                    variablesOverlay.put("WORKSPACE", ws.getRemote());
                 }
             }
 
             //Add SCM variables if not set
             SCM scm = build.getProject().getScm();
             if (scm != null) {
-                scm.buildEnvironment(build, variables);
+                scm.buildEnvironment(build, variablesOverlay);
             }
 
             //Always keep build variables (such as parameter variables).
-            variables.putAll(getAndAddBuildVariables(build));
+            LayeredEnvVars variables = variablesOverlay.toView().with(getAndAddBuildVariables(build));
 
             //Get env vars from properties info.
             Map<String, String> resultVariables = variables;
+            timing = timings.start(EnvInjectTimingRecorder.Phase.PROPERTIES);
             if (ws != null) {
                 // File information path can be relative to the workspace.
                 // Prop file variables will be merged with other ones
                 final Map<String, String> propertiesEnvVars = envInjectEnvVarsService.getEnvVarsFileProperty(ws, logger, info.getPropertiesFilePath(), info.getPropertiesContentMap(previousEnvVars), variables);
-                resultVariables  = envInjectEnvVarsService.getMergedVariables(variables, propertiesEnvVars);
+                resultVariables  = envInjectEnvVarsService.getMergedVariablesView(variables, propertiesEnvVars,
+                        Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap());
             } 
+            timing.stop();
                 
+            timing = timings.start(EnvInjectTimingRecorder.Phase.ACTION);
             build.addAction(new EnvInjectBuilderContributionAction(resultVariables));
 
             //Add or get the existing action to add new env vars
             envInjectActionSetter.addEnvVarsToRun(build, resultVariables);
+            timing.stop();
 
         } catch (Throwable throwable) {
             logger.error("Problems occurs on injecting env vars as a build step: " + throwable.getMessage());
             build.setResult(Result.FAILURE);
             return false;
+        } finally {
+            timings.finish();
         }
 
         return true;
@@ -10,9 +10,11 @@ import hudson.slaves.ComputerListener;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.NodePropertyDescriptor;
+import hudson.slaves.OfflineCause;
 import hudson.util.DescribableList;
 import org.jenkinsci.lib.envinject.EnvInjectException;
 import org.jenkinsci.lib.envinject.EnvInjectLogger;
+import org.jenkinsci.plugins.envinject.service.EnvInjectAgentEnvVarsCache;
 import org.jenkinsci.plugins.envinject.service.EnvInjectEnvVars;
 import org.jenkinsci.plugins.envinject.service.EnvInjectMasterEnvVarsRetriever;
 import org.jenkinsci.plugins.envinject.service.EnvInjectMasterEnvVarsSetter;
@@ -128,6 +130,9 @@ public class EnvInjectComputerListener extends ComputerListener implements Seria
     @Override
     public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
 
+        //The environment of a new connection is retrieved again
+        EnvInjectAgentEnvVarsCache.invalidate(c);
+
         //Get node path
         final Node node = c.getNode();
         final FilePath nodePath = node != null ? node.getRootPath() : null;
@@ -157,6 +162,14 @@ public class EnvInjectComputerListener extends ComputerListener implements Seria
                 throw new IOException(e);
             }
         }
+
+        //Snapshot of the environment served to builds
+        EnvInjectAgentEnvVarsCache.refresh(c);
+    }
+
+    @Override
+    public void onOffline(@NonNull Computer c, @CheckForNull OfflineCause cause) {
+        EnvInjectAgentEnvVarsCache.invalidate(c);
     }
 
     private boolean isActiveSlave(@CheckForNull Computer c) {
@@ -3,6 +3,7 @@ package org.jenkinsci.plugins.envinject;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Util;
 import org.jenkinsci.lib.envinject.EnvInjectException;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
 import org.jenkinsci.plugins.envinject.service.PropertiesGetter;
 import org.jenkinsci.plugins.envinject.service.PropertiesLoader;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -19,10 +20,21 @@ import edu.umd.cs.findbugs.annotations.Nullable;
  */
 public class EnvInjectInfo implements Serializable {
 
+    private static final EnvInjectMetrics.Counter CACHE_HITS = EnvInjectMetrics.counter("cache_hits_total", "cache", "properties_content");
+
+    private static final EnvInjectMetrics.Counter CACHE_MISSES = EnvInjectMetrics.counter("cache_misses_total", "cache", "properties_content");
+
     //TODO: Should be final, but binary compatibility...
     protected @CheckForNull String propertiesFilePath;
     protected @CheckForNull String propertiesContent;
 
+    /**
+     * Parsed {@link #propertiesContent}, see {@link #getParsedPropertiesContent(PropertiesLoader, String)}.
+     * It is never serialized, it is parsed again on the first use after the configuration is loaded.
+     */
+    @CheckForNull
+    private transient volatile ParsedPropertiesContent parsedPropertiesContent;
+
     @DataBoundConstructor
     public EnvInjectInfo(String propertiesFilePath, String propertiesContent) {
         this.propertiesFilePath = Util.fixEmpty(propertiesFilePath);
@@ -61,13 +73,31 @@ public class EnvInjectInfo implements Serializable {
         Map<String, String> contentMap = new HashMap<String, String>();
         PropertiesLoader loader = new PropertiesLoader();
         try {
-            contentMap = loader.getVarsFromPropertiesContent(propertiesContent, currentEnvVars);
+            contentMap = loader.expandVars(getParsedPropertiesContent(loader, propertiesContent), currentEnvVars);
         } catch (EnvInjectException e) {
             e.printStackTrace();
         }
         return contentMap;
     }
 
+    /**
+     * Gets the parsed content before the macro expansion, it is parsed once per content.
+     * Saving the configuration creates a new instance, so the cache is not shared with the previous configuration.
+     */
+    @NonNull
+    private Map<String, String> getParsedPropertiesContent(@NonNull PropertiesLoader loader, @NonNull String content)
+            throws EnvInjectException {
+        ParsedPropertiesContent parsed = parsedPropertiesContent;
+        if (parsed == null || !parsed.content.equals(content)) {
+            CACHE_MISSES.increment();
+            parsed = new ParsedPropertiesContent(content, loader.parsePropertiesContent(content));
+            parsedPropertiesContent = parsed;
+        } else {
+            CACHE_HITS.increment();
+        }
+        return parsed.properties;
+    }
+
     /**
      * Fix CR/LF and always make it Unix style.
      * @return String with fixed line endings. May return {@code null} only for {@code null} input
@@ -94,4 +124,20 @@ public class EnvInjectInfo implements Serializable {
     @SuppressFBWarnings(value = "SE_TRANSIENT_FIELD_NOT_RESTORED", justification = "Deprecated")
     protected transient boolean populateTriggerCause;
 
+    /**
+     * Properties content with its parsed keys and values.
+     */
+    private static final class ParsedPropertiesContent {
+
+        @NonNull
+        private final String content;
+
+        @NonNull
+        private final Map<String, String> properties;
+
+        ParsedPropertiesContent(@NonNull String content, @NonNull Map<String, String> properties) {
+            this.content = content;
+            this.properties = properties;
+        }
+    }
 }
@@ -8,19 +8,23 @@ import hudson.matrix.MatrixBuild;
 import hudson.matrix.MatrixRun;
 import hudson.model.*;
 import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
 
 import org.jenkinsci.lib.envinject.EnvInjectException;
 import org.jenkinsci.lib.envinject.EnvInjectLogger;
 import org.jenkinsci.plugins.envinject.model.EnvInjectJobPropertyContributor;
 import org.jenkinsci.plugins.envinject.service.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import org.jenkinsci.plugins.envinject.util.LayeredEnvVars;
 import org.jenkinsci.plugins.envinject.util.RunHelper;
 
 /**
@@ -34,19 +38,22 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
             @NonNull BuildListener listener) throws IOException, InterruptedException {
         if (isEligibleJobType(build)) {
             EnvInjectLogger logger = new EnvInjectLogger(listener);
+            EnvInjectTimingRecorder timings = new EnvInjectTimingRecorder(build, "Environment setup");
             try {
 
                 //Process environment variables at node level
                 Node buildNode = build.getBuiltOn();
                 if (buildNode != null) {
+                    EnvInjectTimingRecorder.Timing timing = timings.start(EnvInjectTimingRecorder.Phase.NODE_VARIABLES);
                     loadEnvironmentVariablesNode(build, buildNode, logger);
+                    timing.stop();
                 }
 
                 //Load job envinject job property
                 if (isEnvInjectJobPropertyActive(build)) {
-                    return setUpEnvironmentJobPropertyObject(build, launcher, listener, logger);
+                    return setUpEnvironmentJobPropertyObject(build, launcher, listener, logger, timings);
                 } else {
-                    return setUpEnvironmentWithoutJobPropertyObject(build, launcher, listener);
+                    return setUpEnvironmentWithoutJobPropertyObject(build, launcher, listener, timings);
                 }
             } catch (Run.RunnerAbortedException rre) {
                 logger.info("Fail the build.");
@@ -54,6 +61,8 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
             } catch (EnvInjectException e) {
                 e.printStackTrace(listener.error("SEVERE ERROR occurs"));
                 throw new Run.RunnerAbortedException();
+            } finally {
+                timings.finish();
             }
         }
 
@@ -75,10 +84,14 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
 
     private void loadEnvironmentVariablesNode(@NonNull Run<?, ?> build, @NonNull Node buildNode, @NonNull EnvInjectLogger logger) throws EnvInjectException {
 
-        Map<String, String> configNodeEnvVars = EnvironmentVariablesNodeLoader.gatherEnvVarsForNode(build, buildNode, logger);
-        EnvInjectActionSetter envInjectActionSetter = new EnvInjectActionSetter(buildNode.getRootPath());
+        FilePath rootPath = buildNode.getRootPath();
         try {
-            envInjectActionSetter.addEnvVarsToRun(build, configNodeEnvVars);
+            //The node environment is used for the node variables and for the action
+            EnvInjectAgentEnvVarsCache.Snapshot nodeEnvVars = rootPath != null ? EnvInjectAgentEnvVarsCache.get(rootPath) : null;
+
+            Map<String, String> configNodeEnvVars = EnvironmentVariablesNodeLoader.gatherEnvVarsForNode(build, buildNode, nodeEnvVars, logger);
+            new EnvInjectActionSetter(rootPath).addEnvVarsToRun(build, configNodeEnvVars,
+                    nodeEnvVars != null ? nodeEnvVars.getEnvVars() : null);
 
         } catch (IOException ioe) {
             throw new EnvInjectException(ioe);
@@ -114,6 +127,8 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
                     }
 
                     //Resolve variables each other and with WORKSPACE
+                    //All values are resolved again: the injected values are stored unresolved and this map is new,
+                    //so there is no previous resolution, which an index of the dependents of WORKSPACE could update
                     EnvInjectEnvVars envInjectEnvVars = new EnvInjectEnvVars(envInjectLogger);
                     envInjectEnvVars.resolveVars(previousEnvVars, previousEnvVars);
 
@@ -136,9 +151,23 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
         }
     }
 
+    /**
+     * Drops the memoized build variables once the workspace has been checked out,
+     * since SCM contributions are not visible in the state of the run.
+     */
+    @Extension
+    public static class BuildVariablesCheckoutListener extends SCMListener {
+
+        @Override
+        public void onCheckout(Run<?, ?> build, SCM scm, FilePath workspace, TaskListener listener,
+                @CheckForNull File changelogFile, @CheckForNull SCMRevisionState pollingBaseline) throws Exception {
+            RunHelper.invalidateBuildVariables(build);
+        }
+    }
+
     private Environment setUpEnvironmentJobPropertyObject(@NonNull Run<?, ?> build, 
-            @NonNull Launcher launcher, @NonNull BuildListener listener, @NonNull EnvInjectLogger logger) 
-            throws IOException, InterruptedException, EnvInjectException {
+            @NonNull Launcher launcher, @NonNull BuildListener listener, @NonNull EnvInjectLogger logger,
+            @NonNull EnvInjectTimingRecorder timings) throws IOException, InterruptedException, EnvInjectException {
 
         logger.info("Preparing an environment for the build.");
 
@@ -147,24 +176,30 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
         EnvInjectJobPropertyInfo info = envInjectJobProperty.getInfo();
         assert envInjectJobProperty.isOn();
 
-        //Init infra env vars
+        //Init infra env vars, both share the previous variables
+        EnvInjectTimingRecorder.Timing timing = timings.start(EnvInjectTimingRecorder.Phase.BUILD_VARIABLES);
         Map<String, String> previousEnvVars = RunHelper.getEnvVarsPreviousSteps(build, logger);
-        Map<String, String> infraEnvVarsNode = new LinkedHashMap<String, String>(previousEnvVars);
-        Map<String, String> infraEnvVarsMaster = new LinkedHashMap<String, String>(previousEnvVars);
+        timing.stop();
+        LayeredEnvVars infraEnvVarsNode = LayeredEnvVars.of(previousEnvVars);
+        LayeredEnvVars infraEnvVarsMaster = infraEnvVarsNode;
 
         //Add Jenkins System variables
         if (envInjectJobProperty.isKeepJenkinsSystemVariables()) {
             logger.info("Keeping Jenkins system variables.");
-            infraEnvVarsMaster.putAll(EnvInjectVariableGetter.getJenkinsSystemEnvVars(true));
-            infraEnvVarsNode.putAll(EnvInjectVariableGetter.getJenkinsSystemEnvVars(false));
+            timing = timings.start(EnvInjectTimingRecorder.Phase.SYSTEM_VARIABLES);
+            infraEnvVarsMaster = infraEnvVarsMaster.with(EnvInjectVariableGetter.getJenkinsSystemEnvVars(true));
+            infraEnvVarsNode = infraEnvVarsNode.with(EnvInjectVariableGetter.getJenkinsSystemEnvVars(false));
+            timing.stop();
         }
 
         //Add build variables
         if (envInjectJobProperty.isKeepBuildVariables()) {
             logger.info("Keeping Jenkins build variables.");
+            timing = timings.start(EnvInjectTimingRecorder.Phase.BUILD_VARIABLES);
             Map<String, String> buildVariables = RunHelper.getBuildVariables(build, logger);
-            infraEnvVarsMaster.putAll(buildVariables);
-            infraEnvVarsNode.putAll(buildVariables);
+            timing.stop();
+            infraEnvVarsMaster = infraEnvVarsMaster.with(buildVariables);
+            infraEnvVarsNode = infraEnvVarsNode.with(buildVariables);
         }
 
         final FilePath rootPath = getNodeRootPath();
@@ -173,41 +208,59 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
             final EnvInjectEnvVars envInjectEnvVarsService = new EnvInjectEnvVars(logger);
 
             //Execute script
+            timing = timings.start(EnvInjectTimingRecorder.Phase.SCRIPT);
             int resultCode = envInjectEnvVarsService.executeScript(info.isLoadFilesFromMaster(),
                     info.getScriptContent(),
                     rootPath, info.getScriptFilePath(), infraEnvVarsMaster, infraEnvVarsNode, launcher, listener);
+            timing.stop();
             if (resultCode != 0) {
                 build.setResult(Result.FAILURE);
                 throw new Run.RunnerAbortedException();
             }
 
             //Evaluate Groovy script
+            timing = timings.start(EnvInjectTimingRecorder.Phase.GROOVY_SCRIPT);
             Map<String, String> groovyMapEnvVars = envInjectEnvVarsService.executeGroovyScript(logger, info.getSecureGroovyScript(), infraEnvVarsNode);
+            timing.stop();
 
+            timing = timings.start(EnvInjectTimingRecorder.Phase.PROPERTIES);
             final Map<String, String> propertiesVariables = envInjectEnvVarsService.getEnvVarsPropertiesJobProperty(rootPath,
                     logger, info.isLoadFilesFromMaster(),
                     info.getPropertiesFilePath(), info.getPropertiesContentMap(previousEnvVars),
                     infraEnvVarsMaster, infraEnvVarsNode);
+            timing.stop();
 
             //Get variables get by contribution
+            timing = timings.start(EnvInjectTimingRecorder.Phase.CONTRIBUTORS);
             Map<String, String> contributionVariables = getEnvVarsByContribution(build, envInjectJobProperty, logger, listener);
+            timing.stop();
 
-            final Map<String, String> mergedVariables = envInjectEnvVarsService.getMergedVariables(
+            final LayeredEnvVars mergedVariables = envInjectEnvVarsService.getMergedVariablesView(
                     infraEnvVarsNode,
                     propertiesVariables,
                     groovyMapEnvVars,
                     contributionVariables);
 
             //Add an action to share injected environment variables
+            timing = timings.start(EnvInjectTimingRecorder.Phase.ACTION);
             new EnvInjectActionSetter(rootPath).addEnvVarsToRun(build, mergedVariables);
+            timing.stop();
 
 
             return new Environment() {
+
+                @CheckForNull
+                private Map<String, String> resolvedVariables;
+
                 @Override
                 public void buildEnvVars(Map<String, String> env) {
-                    envInjectEnvVarsService.resolveVars(mergedVariables, mergedVariables); //resolve variables each other
+                    if (resolvedVariables == null) {
+                        Map<String, String> variables = mergedVariables.materialize();
+                        envInjectEnvVarsService.resolveVars(variables, variables); //resolve variables each other
+                        resolvedVariables = variables;
+                    }
                     //however, here preCheckout of EnvBuildWrapper is not yet performed
-                    env.putAll(mergedVariables);
+                    env.putAll(resolvedVariables);
                 }
             };
         } else {
@@ -221,20 +274,30 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
 
     @NonNull
     private Environment setUpEnvironmentWithoutJobPropertyObject(@NonNull AbstractBuild build, 
-            @NonNull Launcher launcher, @NonNull BuildListener listener) throws IOException, InterruptedException, EnvInjectException {
+            @NonNull Launcher launcher, @NonNull BuildListener listener, @NonNull EnvInjectTimingRecorder timings)
+            throws IOException, InterruptedException, EnvInjectException {
 
         final Map<String, String> resultVariables = new HashMap<String, String>();
 
         EnvInjectLogger logger = new EnvInjectLogger(listener);
+        EnvInjectTimingRecorder.Timing timing = timings.start(EnvInjectTimingRecorder.Phase.BUILD_VARIABLES);
         Map<String, String> previousEnvVars = RunHelper.getEnvVarsPreviousSteps(build, logger);
         resultVariables.putAll(previousEnvVars);
+        timing.stop();
 
+        timing = timings.start(EnvInjectTimingRecorder.Phase.SYSTEM_VARIABLES);
         resultVariables.putAll(EnvInjectVariableGetter.getJenkinsSystemEnvVars(false));
+        timing.stop();
+
+        timing = timings.start(EnvInjectTimingRecorder.Phase.BUILD_VARIABLES);
         resultVariables.putAll(RunHelper.getBuildVariables(build, logger));
+        timing.stop();
 
         final FilePath rootPath = getNodeRootPath();
         if (rootPath != null) {
+            timing = timings.start(EnvInjectTimingRecorder.Phase.ACTION);
             new EnvInjectActionSetter(rootPath).addEnvVarsToRun(build, resultVariables);
+            timing.stop();
         }
 
         return new Environment() {
@@ -283,6 +346,8 @@ public class EnvInjectListener extends RunListener<Run> implements Serializable
     @Override
     public void onCompleted(Run run, TaskListener listener) {
 
+        RunHelper.invalidateBuildVariables(run);
+
         if (!(run instanceof AbstractBuild)) {
             return;
         }
@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.StaplerResponse2;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Publishes {@link EnvInjectMetrics} in the Prometheus text format at {@code envinject/metrics}.
+ * Reading the metrics requires the {@link Jenkins#SYSTEM_READ} permission.
+ * @since TODO
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class EnvInjectMetricsAction implements RootAction {
+
+    public static final String URL_NAME = "envinject";
+
+    @CheckForNull
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @CheckForNull
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    public void doMetrics(@NonNull StaplerResponse2 response) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        PrintWriter writer = response.getWriter();
+        EnvInjectMetrics.writePrometheus(writer);
+        writer.flush();
+    }
+}
@@ -7,6 +7,8 @@ import hudson.slaves.NodeProperty;
 import hudson.slaves.NodePropertyDescriptor;
 import java.util.Arrays;
 import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest2;
 
@@ -42,8 +44,11 @@ public class EnvInjectNodeProperty extends NodeProperty<Node> {
     @Extension
     public static class EnvInjectNodePropertyDescriptor extends NodePropertyDescriptor {
 
+        /**
+         * Global passwords, the array is replaced as a whole on configuration and never modified.
+         */
         @NonNull
-        private EnvInjectGlobalPasswordEntry[] envInjectGlobalPasswordEntries = new EnvInjectGlobalPasswordEntry[0];
+        private volatile EnvInjectGlobalPasswordEntry[] envInjectGlobalPasswordEntries = new EnvInjectGlobalPasswordEntry[0];
         public static final String ENVINJECT_CONFIG = "envInject";
 
         public EnvInjectNodePropertyDescriptor() {
@@ -66,14 +71,25 @@ public class EnvInjectNodeProperty extends NodeProperty<Node> {
         }
 
         public EnvInjectGlobalPasswordEntry[] getEnvInjectGlobalPasswordEntries() {
-            return Arrays.copyOf(envInjectGlobalPasswordEntries, envInjectGlobalPasswordEntries.length);
+            EnvInjectGlobalPasswordEntry[] entries = envInjectGlobalPasswordEntries;
+            return Arrays.copyOf(entries, entries.length);
+        }
+
+        /**
+         * Replaces the global passwords and saves them.
+         * @param entries Global passwords
+         * @since TODO
+         */
+        @Restricted(NoExternalUse.class)
+        public void setEnvInjectGlobalPasswordEntries(@NonNull List<EnvInjectGlobalPasswordEntry> entries) {
+            envInjectGlobalPasswordEntries = entries.toArray(new EnvInjectGlobalPasswordEntry[0]);
+            save();
         }
 
         @Override
         public boolean configure(StaplerRequest2 req, JSONObject json) throws FormException {
             List<EnvInjectGlobalPasswordEntry> envInjectGlobalPasswordEntriesList = req.bindParametersToList(EnvInjectGlobalPasswordEntry.class, "envInject.");
-            envInjectGlobalPasswordEntries = envInjectGlobalPasswordEntriesList.toArray(new EnvInjectGlobalPasswordEntry[envInjectGlobalPasswordEntriesList.size()]);
-            save();
+            setEnvInjectGlobalPasswordEntries(envInjectGlobalPasswordEntriesList);
             return true;
         }
 
@@ -2,7 +2,6 @@ package org.jenkinsci.plugins.envinject;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.console.LineTransformationOutputStream;
@@ -15,16 +14,21 @@ import hudson.model.PasswordParameterValue;
 import hudson.model.Run;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import jenkins.util.SystemProperties;
 import net.sf.json.JSONObject;
 import org.jenkinsci.lib.envinject.EnvInjectException;
 import org.jenkinsci.lib.envinject.EnvInjectLogger;
 import org.jenkinsci.plugins.envinject.service.EnvInjectGlobalPasswordRetriever;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
+import org.jenkinsci.plugins.envinject.util.MaskingAutomaton;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest2;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.regex.Pattern;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
@@ -57,6 +61,24 @@ public class EnvInjectPasswordWrapper extends BuildWrapper {
         }
     };
 
+    /**
+     * Size of the chunks, in which the build log is masked.
+     */
+    private static final int MASKING_CHUNK_SIZE = SystemProperties.getInteger(
+            EnvInjectPasswordWrapper.class.getName() + ".maskingChunkSize", 8192);
+
+    private static final EnvInjectMetrics.Counter MASKED_BYTES = EnvInjectMetrics.counter("masking_bytes_total");
+
+    private static final EnvInjectMetrics.Counter MASKING_NANOS = EnvInjectMetrics.counter("masking_duration_nanoseconds_total");
+
+    static {
+        // Throughput of the masking itself, the time spent writing to the underlying log is not included
+        EnvInjectMetrics.gauge("masking_bytes_per_second", null, null, () -> {
+            long nanos = MASKING_NANOS.getValue();
+            return nanos == 0 ? 0 : MASKED_BYTES.getValue() * 1e9 / nanos;
+        });
+    }
+
     private boolean injectGlobalPasswords;
     private boolean maskPasswordParameters;
     
@@ -176,7 +198,17 @@ public class EnvInjectPasswordWrapper extends BuildWrapper {
                 }
             }
             
-            return new EnvInjectPasswordsOutputStream(outputStream, passwords2decorate);
+            Charset charset = Charset.defaultCharset();
+            // too many passwords for the automaton are masked line by line, without compiling it on the build thread
+            if (!MaskingAutomaton.supports(charset) || !MaskingAutomaton.fits(passwords2decorate, charset)) {
+                return new EnvInjectPasswordsOutputStream(outputStream, passwords2decorate, charset);
+            }
+            // passwords are matched on the encoded output, without decoding it
+            MaskingAutomaton passwordsAutomaton = MaskingAutomaton.get(passwords2decorate, charset, EnvInjectPlugin.DEFAULT_MASK);
+            if (passwordsAutomaton == null) { // no passwords to hide
+                return outputStream;
+            }
+            return new EnvInjectStreamingPasswordsOutputStream(outputStream, passwordsAutomaton);
 
         } catch (EnvInjectException ee) {
             throw new Run.RunnerAbortedException();
@@ -194,52 +226,181 @@ public class EnvInjectPasswordWrapper extends BuildWrapper {
     }
 
     /**
-     * Class took from the mask-passwords plugin
+     * Masks the passwords in fixed-size chunks, see {@link MaskingAutomaton#maskPrefix(byte[], int, int, OutputStream)}.
+     * Only the end of a chunk, which may be the start of a password, is carried over to the next one,
+     * so the memory is bounded whatever the length of the lines.
+     * Chunks are also masked at line ends and carriage returns to keep the log output timely.
+     */
+    @Restricted(NoExternalUse.class)
+    public static class EnvInjectStreamingPasswordsOutputStream extends OutputStream {
+
+        @NonNull
+        private final OutputStream logger;
+        @NonNull
+        private final MaskingAutomaton passwordsAutomaton;
+        /**
+         * Pending bytes: the carry-over of the previous chunk followed by the bytes written since.
+         */
+        @NonNull
+        private final byte[] buffer;
+        private int count;
+        /**
+         * Masked chunk, reused to write each chunk at once.
+         */
+        private final ByteArrayOutputStream maskedChunk = new ByteArrayOutputStream();
+
+        public EnvInjectStreamingPasswordsOutputStream(@NonNull OutputStream logger, @NonNull MaskingAutomaton passwordsAutomaton) {
+            this(logger, passwordsAutomaton, MASKING_CHUNK_SIZE);
+        }
+
+        public EnvInjectStreamingPasswordsOutputStream(@NonNull OutputStream logger, @NonNull MaskingAutomaton passwordsAutomaton,
+                int chunkSize) {
+            this.logger = logger;
+            this.passwordsAutomaton = passwordsAutomaton;
+            // The carry-over is shorter than the longest password, a chunk always has room for new bytes
+            this.buffer = new byte[Math.max(chunkSize, 2 * passwordsAutomaton.getMaxLength())];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[count++] = (byte) b;
+            if (count == buffer.length || b == '\n' || b == '\r') {
+                mask(false);
+            }
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                int copied = Math.min(end - off, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, copied);
+                off += copied;
+                count += copied;
+                if (count == buffer.length || containsLineEnd(b, off - copied, off)) {
+                    mask(false);
+                }
+            }
+        }
+
+        private static boolean containsLineEnd(@NonNull byte[] b, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (b[i] == '\n' || b[i] == '\r') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Writes the masked pending bytes.
+         * @param last {@code true} to mask all of them, {@code false} to keep the ones,
+         *             which may be the start of a password
+         */
+        private void mask(boolean last) throws IOException {
+            if (count == 0) {
+                return;
+            }
+            long start = System.nanoTime();
+            maskedChunk.reset();
+            int processed;
+            if (last) {
+                passwordsAutomaton.mask(buffer, 0, count, maskedChunk);
+                processed = count;
+            } else {
+                processed = passwordsAutomaton.maskPrefix(buffer, 0, count, maskedChunk);
+            }
+            MASKING_NANOS.add(System.nanoTime() - start);
+            MASKED_BYTES.add(processed);
+            System.arraycopy(buffer, processed, buffer, 0, count - processed);
+            count -= processed;
+            maskedChunk.writeTo(logger);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mask(false);
+            logger.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mask(true);
+            } finally {
+                logger.close();
+            }
+        }
+    }
+
+    /**
+     * Class took from the mask-passwords plugin.
+     * Used for the charsets not supported by {@link MaskingAutomaton}, the lines are masked as strings.
      */
-    static class EnvInjectPasswordsOutputStream extends LineTransformationOutputStream {
+    @Restricted(NoExternalUse.class)
+    public static class EnvInjectPasswordsOutputStream extends LineTransformationOutputStream {
 
         @NonNull
         private final OutputStream logger;
         @CheckForNull
         private final Pattern passwordsAsPattern;
+        @NonNull
+        private final Charset charset;
 
-        EnvInjectPasswordsOutputStream(@NonNull OutputStream logger, @CheckForNull Collection<String> passwords) {
+        public EnvInjectPasswordsOutputStream(@NonNull OutputStream logger, @CheckForNull Collection<String> passwords) {
+            this(logger, passwords, Charset.defaultCharset());
+        }
 
+        public EnvInjectPasswordsOutputStream(@NonNull OutputStream logger, @CheckForNull Collection<String> passwords,
+                @NonNull Charset charset) {
             this.logger = logger;
+            this.passwordsAsPattern = compilePattern(passwords);
+            this.charset = charset;
+        }
 
-            if (passwords != null && passwords.size() > 0) {
-                // passwords are aggregated into a regex which is compiled as a pattern
-                // for efficiency
-                StringBuilder regex = new StringBuilder().append('(');
-
-                int nbMaskedPasswords = 0;
-                for (String password : passwords) {
-                    if (password != null && !password.isEmpty()) { // we must not handle empty passwords
-                        regex.append(Pattern.quote(password));
-                        regex.append('|');
-                        nbMaskedPasswords++;
-                    }
-                }
-                if (nbMaskedPasswords >= 1) { // is there at least one password to mask?
-                    regex.deleteCharAt(regex.length() - 1); // removes the last unuseful pipe
-                    regex.append(')');
-                    passwordsAsPattern = Pattern.compile(regex.toString());
-                } else { // no passwords to hide
-                    passwordsAsPattern = null;
+        /**
+         * Aggregates passwords into a regex, longest passwords first so the longest match wins.
+         */
+        @CheckForNull
+        private static Pattern compilePattern(@CheckForNull Collection<String> passwords) {
+            if (passwords == null) { // no passwords to hide
+                return null;
+            }
+            List<String> sortedPasswords = new ArrayList<String>();
+            for (String password : passwords) {
+                if (password != null && !password.isEmpty()) { // we must not handle empty passwords
+                    sortedPasswords.add(password);
                 }
-            } else { // no passwords to hide
-                passwordsAsPattern = null;
             }
+            if (sortedPasswords.isEmpty()) { // no passwords to hide
+                return null;
+            }
+            sortedPasswords.sort(Comparator.comparingInt(String::length).reversed());
+
+            StringBuilder regex = new StringBuilder().append('(');
+            for (String password : sortedPasswords) {
+                regex.append(Pattern.quote(password));
+                regex.append('|');
+            }
+            regex.deleteCharAt(regex.length() - 1); // removes the last unuseful pipe
+            regex.append(')');
+            return Pattern.compile(regex.toString());
         }
 
         @Override
-        @SuppressFBWarnings(value = "DM_DEFAULT_ENCODING", justification = "TODO needs triage")
         protected void eol(byte[] bytes, int len) throws IOException {
-            String line = new String(bytes, 0, len);
-            if (passwordsAsPattern != null) {
-                line = passwordsAsPattern.matcher(line).replaceAll(EnvInjectPlugin.DEFAULT_MASK);
+            if (passwordsAsPattern == null) {
+                logger.write(bytes, 0, len);
+                return;
             }
-            logger.write(line.getBytes());
+
+            long start = System.nanoTime();
+            String line = new String(bytes, 0, len, charset);
+            line = passwordsAsPattern.matcher(line).replaceAll(EnvInjectPlugin.DEFAULT_MASK);
+            byte[] masked = line.getBytes(charset);
+            MASKING_NANOS.add(System.nanoTime() - start);
+            MASKED_BYTES.add(len);
+            logger.write(masked);
         }
 
         @Override
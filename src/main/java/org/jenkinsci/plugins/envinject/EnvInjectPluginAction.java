@@ -1,10 +1,14 @@
 package org.jenkinsci.plugins.envinject;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
 import hudson.EnvVars;
 import hudson.model.AbstractBuild;
 import hudson.model.EnvironmentContributingAction;
 
+import java.io.IOException;
+import java.io.ObjectStreamException;
 import java.util.Collections;
 
 import hudson.model.ParametersAction;
@@ -12,6 +16,7 @@ import hudson.model.Run;
 import org.jenkinsci.lib.envinject.EnvInjectAction;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -22,6 +27,10 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import net.jcip.annotations.GuardedBy;
 
 import jenkins.model.RunAction2;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
+import org.jenkinsci.plugins.envinject.service.EnvInjectVarsStore;
+import org.jenkinsci.plugins.envinject.util.OverlayEnvVars;
 import org.jenkinsci.plugins.envinject.util.RunHelper;
 
 /**
@@ -40,6 +49,49 @@ public class EnvInjectPluginAction extends EnvInjectAction implements Environmen
     @GuardedBy("this")
     private transient EnvVars resolvedParameterEnvVars = null;
 
+    /**
+     * Variables loaded from {@link EnvInjectVarsStore}, by action.
+     * They are only used when the parent class has no variables, i.e. no legacy text file was loaded.
+     * The least recently used variables are evicted above the size budget and loaded again when needed,
+     * so browsing the history of builds does not keep all their variables in memory.
+     */
+    private static final Cache<EnvInjectPluginAction, Map<String, String>> STORED_ENV_MAPS = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumWeight(Math.max(0, SystemProperties.getLong(
+                    EnvInjectPluginAction.class.getName() + ".storedVarsCacheBytes", 64L * 1024 * 1024)))
+            .weigher((EnvInjectPluginAction action, Map<String, String> envMap) -> estimateSize(envMap))
+            .build();
+
+    private static final EnvInjectMetrics.Counter CACHE_HITS = EnvInjectMetrics.counter("cache_hits_total", "cache", "stored_vars");
+
+    private static final EnvInjectMetrics.Counter CACHE_MISSES = EnvInjectMetrics.counter("cache_misses_total", "cache", "stored_vars");
+
+    /**
+     * Stored variables modified since they were loaded, they cannot be evicted until they are stored again.
+     */
+    @GuardedBy("this")
+    private transient Map<String, String> modifiedStoredEnvMap = null;
+
+    /**
+     * Whether the build has no variables in {@link EnvInjectVarsStore}.
+     */
+    @GuardedBy("this")
+    private transient boolean noStoredEnvMap = false;
+
+    /**
+     * Sensitive variables of the last override of the stored variables.
+     * The parent class only updates its own ones when it holds the variables.
+     */
+    @CheckForNull
+    @GuardedBy("this")
+    private Set<String> storedSensibleVariables;
+
+    /**
+     * Whether the variables changed since they were stored.
+     * Loaded actions are not stored again, unless they are modified.
+     */
+    private transient volatile boolean modified = false;
+
     /**
      * Constructor.
      * @deprecated This is a {@link RunAction2} instance, not need to pass build explicitly.
@@ -48,6 +100,7 @@ public class EnvInjectPluginAction extends EnvInjectAction implements Environmen
     @Deprecated
     public EnvInjectPluginAction(@NonNull AbstractBuild build, @CheckForNull Map<String, String> envMap) {
         super(build, envMap);
+        modified = true;
     }
     
     /**
@@ -57,6 +110,178 @@ public class EnvInjectPluginAction extends EnvInjectAction implements Environmen
      */
     public EnvInjectPluginAction(@CheckForNull Map<String, String> envMap) {
         super(envMap);
+        modified = true;
+    }
+
+    /**
+     * Gets the injected variables.
+     * Variables of builds stored in the legacy text file are loaded by the parent class,
+     * others are loaded from {@link EnvInjectVarsStore} on the first access.
+     */
+    @CheckForNull
+    @Override
+    public synchronized Map<String, String> getEnvMap() {
+        Map<String, String> envMap = super.getEnvMap();
+        if (envMap != null) {
+            return envMap;
+        }
+        Map<String, String> stored = getStoredEnvMap();
+        return stored == null ? null : Collections.unmodifiableMap(stored);
+    }
+
+    @CheckForNull
+    @GuardedBy("this")
+    private Map<String, String> getStoredEnvMap() {
+        if (modifiedStoredEnvMap != null) {
+            return modifiedStoredEnvMap;
+        }
+        if (noStoredEnvMap) {
+            return null;
+        }
+        Map<String, String> storedEnvMap = STORED_ENV_MAPS.getIfPresent(this);
+        if (storedEnvMap != null) {
+            CACHE_HITS.increment();
+            return storedEnvMap;
+        }
+
+        final Run<?, ?> run = getOwner();
+        if (run == null) {
+            return null;
+        }
+        if (!EnvInjectVarsStore.exists(run.getRootDir())) {
+            noStoredEnvMap = true;
+            return null;
+        }
+        CACHE_MISSES.increment();
+        try {
+            storedEnvMap = EnvInjectVarsStore.get().load(run.getRootDir());
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to load the injected variables of " + run, ex);
+            noStoredEnvMap = true;
+            return null;
+        }
+        if (storedEnvMap != null) {
+            STORED_ENV_MAPS.put(this, storedEnvMap);
+        }
+        return storedEnvMap;
+    }
+
+    /**
+     * Evicts all loaded stored variables, modified ones are kept.
+     */
+    static void evictStoredEnvMaps() {
+        STORED_ENV_MAPS.invalidateAll();
+    }
+
+    /**
+     * Estimates the memory used by the variables.
+     * The shared base of {@link OverlayEnvVars} is not counted, only the difference of the build.
+     */
+    private static int estimateSize(@NonNull Map<String, String> envMap) {
+        if (envMap instanceof OverlayEnvVars) {
+            // Overlay map and set, key and value strings are interned
+            return 256 + 96 * ((OverlayEnvVars) envMap).getDifferenceCount();
+        }
+        long size = 0;
+        for (Map.Entry<String, String> entry : envMap.entrySet()) {
+            // Map entry and two strings
+            size += 96 + entry.getKey().length() + (entry.getValue() == null ? 0 : entry.getValue().length());
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /**
+     * Overrides the variables held by the parent class, or the stored ones if the parent class has none.
+     * In both cases the sensitive variables are replaced, like the parent class does.
+     */
+    @GuardedBy("this")
+    private void override(@CheckForNull Set<String> sensibleVariables, @CheckForNull Map<String, String> all) {
+        modified = true;
+        if (super.getEnvMap() == null && all != null) {
+            Map<String, String> stored = getStoredEnvMap();
+            if (stored != null) {
+                stored.putAll(all);
+                modifiedStoredEnvMap = stored;
+                storedSensibleVariables = sensibleVariables == null
+                        ? new HashSet<String>() : new HashSet<String>(sensibleVariables);
+                return;
+            }
+        }
+        super.overrideAll(sensibleVariables, all);
+    }
+
+    /**
+     * Gets the sensitive variables.
+     * They are set by the parent class, unless the stored variables have been overridden.
+     */
+    @CheckForNull
+    @Override
+    public synchronized Set<String> getSensibleVariables() {
+        if (storedSensibleVariables != null) {
+            return storedSensibleVariables;
+        }
+        return super.getSensibleVariables();
+    }
+
+    /**
+     * Stores the variables in the legacy text file of the parent class or, if the administrator enabled it,
+     * in {@link EnvInjectVarsStore} as a difference with the variables of the previous build.
+     * The legacy text file is written when the store fails, so the variables are not lost.
+     * Sensitive values are masked.
+     * The files are written outside of the monitor of the action, since the previous build may have to be loaded.
+     */
+    @SuppressWarnings("unused")
+    private Object writeReplace() throws ObjectStreamException {
+        final Run<?, ?> run = getOwner();
+        final Map<String, String> masked;
+        synchronized (this) {
+            final Map<String, String> currentEnvMap = getEnvMap();
+            if (!modified || run == null || currentEnvMap == null || currentEnvMap.isEmpty()) {
+                return this;
+            }
+            masked = new HashMap<>(currentEnvMap);
+            final Set<String> sensibleVars = getSensibleVariables();
+            if (sensibleVars != null) {
+                for (String name : sensibleVars) {
+                    masked.computeIfPresent(name, (key, value) -> EnvInjectPlugin.DEFAULT_MASK);
+                }
+            }
+            // Modifications made while the variables are stored are stored the next time
+            modified = false;
+        }
+
+        if (!EnvInjectVarsStore.ENABLED) {
+            // The build stays self-contained
+            try {
+                EnvInjectVarsStore.saveLegacy(run.getRootDir(), masked);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Failed to write the injected variables of " + run, ex);
+                modified = true;
+            }
+            // The modified variables are kept, they cannot be loaded from the store
+            return this;
+        }
+        try {
+            final Run<?, ?> previous = run.getPreviousBuild();
+            EnvInjectVarsStore.get().save(run.getRootDir(), masked, previous == null ? null : previous.getRootDir());
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Failed to store the injected variables of " + run + ", writing the legacy file", ex);
+            try {
+                EnvInjectVarsStore.saveLegacy(run.getRootDir(), masked);
+            } catch (IOException legacyEx) {
+                LOGGER.log(Level.WARNING, "Failed to write the injected variables of " + run, legacyEx);
+                modified = true;
+            }
+            // The modified variables are kept, they cannot be loaded from the store
+            return this;
+        }
+        synchronized (this) {
+            if (!modified) {
+                // Stored again, the variables can be evicted
+                modifiedStoredEnvMap = null;
+            }
+        }
+        return this;
     }
 
     @Override
@@ -114,6 +339,11 @@ public class EnvInjectPluginAction extends EnvInjectAction implements Environmen
         return resolvedParameterEnvVars;
     }
 
+    @Override
+    public synchronized void overrideAll(@CheckForNull Set<String> sensibleVariables, @CheckForNull Map<String, String> all) {
+        override(sensibleVariables, all);
+    }
+
     // The method is synchronized, because it modifies the internal cache
     @Override
     public synchronized void buildEnvVars(@NonNull AbstractBuild<?, ?> build, @NonNull EnvVars env) {
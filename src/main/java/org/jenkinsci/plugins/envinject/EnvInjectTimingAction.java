@@ -0,0 +1,189 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Run;
+import jenkins.model.TransientActionFactory;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.GuardedBy;
+
+/**
+ * Durations of the EnvInject phases of a run.
+ * This action is not listed in the side panel, the summary is available at {@code envInjectTimings}.
+ * <p>
+ * The timings are only kept in memory by default, so they do not grow {@code build.xml}, they are lost when
+ * the run is unloaded. They are stored with the run if the
+ * {@code org.jenkinsci.plugins.envinject.EnvInjectTimingAction.persisted} system property is {@code true}.
+ * @see org.jenkinsci.plugins.envinject.service.EnvInjectTimingRecorder
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public class EnvInjectTimingAction implements Action {
+
+    public static final String URL_NAME = "envInjectTimings";
+
+    private static final boolean PERSISTED = SystemProperties.getBoolean(
+            EnvInjectTimingAction.class.getName() + ".persisted");
+
+    /**
+     * Actions, which are not stored with their run, see {@link TransientFactory}.
+     * Actions do not reference their run, so the runs can be collected.
+     */
+    private static final Map<Run<?, ?>, EnvInjectTimingAction> TRANSIENT_ACTIONS =
+            Collections.synchronizedMap(new WeakHashMap<Run<?, ?>, EnvInjectTimingAction>());
+
+    @GuardedBy("this")
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Appends entries to the action of the run, which is created if needed.
+     * @param run Run
+     * @param entries Entries to append
+     */
+    public static void addEntries(@NonNull Run<?, ?> run, @NonNull Collection<Entry> entries) {
+        EnvInjectTimingAction action;
+        synchronized (EnvInjectTimingAction.class) {
+            action = run.getAction(EnvInjectTimingAction.class);
+            if (action == null) {
+                action = new EnvInjectTimingAction();
+                if (PERSISTED) {
+                    run.addAction(action);
+                } else {
+                    TRANSIENT_ACTIONS.put(run, action);
+                }
+            }
+        }
+        synchronized (action) {
+            action.entries.addAll(entries);
+        }
+    }
+
+    /**
+     * Gets the recorded entries.
+     * @return Entries in the recording order
+     */
+    @NonNull
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    /**
+     * Gets the total duration of all phases.
+     * @return Duration in milliseconds
+     */
+    public synchronized long getTotalMillis() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.getDurationMillis();
+        }
+        return total;
+    }
+
+    @CheckForNull
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "EnvInject Timings";
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    /**
+     * Duration of a phase of an EnvInject step.
+     */
+    @Restricted(NoExternalUse.class)
+    public static final class Entry {
+
+        @NonNull
+        private final String step;
+
+        @NonNull
+        private final String phase;
+
+        private final long durationMillis;
+
+        private final long remoteCalls;
+
+        private final long remoteBytes;
+
+        /**
+         * Whether the step failed during the phase.
+         */
+        private final boolean failed;
+
+        public Entry(@NonNull String step, @NonNull String phase, long durationMillis, long remoteCalls, long remoteBytes,
+                boolean failed) {
+            this.step = step;
+            this.phase = phase;
+            this.durationMillis = durationMillis;
+            this.remoteCalls = remoteCalls;
+            this.remoteBytes = remoteBytes;
+            this.failed = failed;
+        }
+
+        @NonNull
+        public String getStep() {
+            return step;
+        }
+
+        @NonNull
+        public String getPhase() {
+            return phase;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public long getRemoteCalls() {
+            return remoteCalls;
+        }
+
+        public long getRemoteBytes() {
+            return remoteBytes;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    /**
+     * Adds the actions kept in memory to their run.
+     */
+    @Extension
+    @Restricted(NoExternalUse.class)
+    @SuppressWarnings("rawtypes")
+    public static final class TransientFactory extends TransientActionFactory<Run> {
+
+        @Override
+        public Class<Run> type() {
+            return Run.class;
+        }
+
+        @NonNull
+        @Override
+        public Collection<? extends Action> createFor(@NonNull Run target) {
+            EnvInjectTimingAction action = TRANSIENT_ACTIONS.get(target);
+            return action == null ? Collections.<Action>emptyList() : Collections.singletonList(action);
+        }
+    }
+}
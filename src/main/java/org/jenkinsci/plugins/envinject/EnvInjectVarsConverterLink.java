@@ -0,0 +1,84 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.envinject.service.EnvInjectVarsConverter;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Management page of {@link EnvInjectVarsConverter}, which shows its progress and starts or stops it.
+ * @since TODO
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class EnvInjectVarsConverterLink extends ManagementLink {
+
+    public static final String URL_NAME = "envInjectVarsConverter";
+
+    @CheckForNull
+    @Override
+    public String getIconFileName() {
+        return "symbol-folder";
+    }
+
+    @CheckForNull
+    @Override
+    public String getDisplayName() {
+        return Messages.envinject_varsConverter_displayName();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.envinject_varsConverter_description();
+    }
+
+    @CheckForNull
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    @NonNull
+    @Override
+    public Permission getRequiredPermission() {
+        return Jenkins.ADMINISTER;
+    }
+
+    @NonNull
+    @Override
+    public Category getCategory() {
+        return Category.TROUBLESHOOTING;
+    }
+
+    @NonNull
+    public EnvInjectVarsConverter getConverter() {
+        return EnvInjectVarsConverter.get();
+    }
+
+    @POST
+    public HttpResponse doStart(@QueryParameter double maxMegabytesPerSecond, @QueryParameter boolean restart) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        if (!(maxMegabytesPerSecond > 0)) {
+            return HttpResponses.errorWithoutStack(400, Messages.envinject_varsConverter_invalidRate());
+        }
+        getConverter().start(maxMegabytesPerSecond, restart);
+        return HttpResponses.redirectToDot();
+    }
+
+    @POST
+    public HttpResponse doStop() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        getConverter().stop();
+        return HttpResponses.redirectToDot();
+    }
+}
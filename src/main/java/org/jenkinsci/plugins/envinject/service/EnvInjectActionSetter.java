@@ -1,20 +1,20 @@
 package org.jenkinsci.plugins.envinject.service;
 
-import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
-import jenkins.security.MasterToSlaveCallable;
 import org.jenkinsci.lib.envinject.EnvInjectException;
 import org.jenkinsci.plugins.envinject.EnvInjectPluginAction;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import org.jenkinsci.plugins.envinject.util.OverlayEnvVars;
 import org.jenkinsci.plugins.envinject.util.RunHelper;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 
 /**
@@ -50,27 +50,39 @@ public class EnvInjectActionSetter implements Serializable {
      */
     public void addEnvVarsToRun(@NonNull Run<?, ?> run, @CheckForNull Map<String, String> envMap) 
             throws EnvInjectException, IOException, InterruptedException {
+        addEnvVarsToRun(run, envMap, null);
+    }
+
+    /**
+     * Adds EnvironmentVariables to the run.
+     * {@link EnvInjectPluginAction} will be created on-demand.
+     * @param run Run
+     * @param envMap Environment variables to be added or overridden
+     * @param nodeEnvVars Environment variables of the node used when the action is created.
+     *                    If {@code null}, they are taken from {@link EnvInjectAgentEnvVarsCache}
+     * @throws EnvInjectException Injection failure
+     * @throws IOException Remote operation failure
+     * @throws InterruptedException Remote call is interrupted
+     * @since TODO
+     */
+    @Restricted(NoExternalUse.class)
+    public void addEnvVarsToRun(@NonNull Run<?, ?> run, @CheckForNull Map<String, String> envMap,
+            @CheckForNull Map<String, String> nodeEnvVars) throws EnvInjectException, IOException, InterruptedException {
 
         EnvInjectPluginAction envInjectAction = run.getAction(EnvInjectPluginAction.class);
         if (envInjectAction != null) {
             envInjectAction.overrideAll(RunHelper.getSensitiveBuildVariables(run), envMap);
         } else {
             if (rootPath != null) {
-                envInjectAction = new EnvInjectPluginAction(rootPath.act(new MapEnvInjectExceptionMasterToSlaveCallable()));
+                if (nodeEnvVars == null) {
+                    nodeEnvVars = EnvInjectAgentEnvVarsCache.get(rootPath).getEnvVars();
+                }
+                // The unmodifiable node variables are shared by the builds on the node, only differences are copied
+                envInjectAction = new EnvInjectPluginAction(new OverlayEnvVars(nodeEnvVars));
                 envInjectAction.overrideAll(RunHelper.getSensitiveBuildVariables(run), envMap);
                 run.addAction(envInjectAction);
             }
         }
-    }
-
-    private static class MapEnvInjectExceptionMasterToSlaveCallable extends MasterToSlaveCallable<Map<String, String>, EnvInjectException> {
-        private static final long serialVersionUID = 1L;
-
-        @Override
-        public Map<String, String> call() throws EnvInjectException {
-            HashMap<String, String> result = new HashMap<String, String>();
-            result.putAll(EnvVars.masterEnvVars);
-            return result;
-        }
+        RunHelper.invalidateBuildVariables(run);
     }
 }
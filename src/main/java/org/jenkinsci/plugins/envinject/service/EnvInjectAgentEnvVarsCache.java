@@ -0,0 +1,155 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import org.jenkinsci.plugins.envinject.util.OverlayEnvVars;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Controller side snapshots of the agent system environment, see {@link EnvInjectMasterEnvVarsRetriever}.
+ * <p>
+ * The environment of an agent only changes when {@link EnvInjectMasterEnvVarsSetter} is pushed
+ * or when the agent reconnects, so it is retrieved once per {@link Computer} and connection.
+ * Snapshots are refreshed by {@code EnvInjectComputerListener} when the computer comes online,
+ * and dropped when it goes offline. A snapshot taken for another channel is never used.
+ * Each snapshot has a unique version, so derived caches can detect a new snapshot.
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class EnvInjectAgentEnvVarsCache {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectAgentEnvVarsCache.class.getName());
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private static final Map<Computer, Snapshot> SNAPSHOTS =
+            Collections.synchronizedMap(new WeakHashMap<Computer, Snapshot>());
+
+    private static final EnvInjectMetrics.Counter CACHE_HITS = EnvInjectMetrics.counter("cache_hits_total", "cache", "node_environment");
+
+    private static final EnvInjectMetrics.Counter CACHE_MISSES = EnvInjectMetrics.counter("cache_misses_total", "cache", "node_environment");
+
+    private EnvInjectAgentEnvVarsCache() {
+    }
+
+    /**
+     * Gets the environment of the node, it is retrieved from the node only if there is no snapshot yet.
+     * @param rootPath Root path of the node
+     * @return Snapshot of the environment
+     * @throws IOException Remote call failure
+     * @throws InterruptedException The remote call is interrupted
+     */
+    @NonNull
+    public static Snapshot get(@NonNull FilePath rootPath) throws IOException, InterruptedException {
+        VirtualChannel channel = rootPath.getChannel();
+        Computer computer = rootPath.toComputer();
+        if (computer != null) {
+            Snapshot snapshot = SNAPSHOTS.get(computer);
+            if (snapshot != null && snapshot.isFor(channel)) {
+                CACHE_HITS.increment();
+                return snapshot;
+            }
+        }
+        CACHE_MISSES.increment();
+        return retrieve(computer, rootPath);
+    }
+
+    /**
+     * Retrieves the environment of the computer again and replaces the snapshot.
+     * @param computer Computer
+     * @throws IOException Remote call failure
+     * @throws InterruptedException The remote call is interrupted
+     */
+    public static void refresh(@NonNull Computer computer) throws IOException, InterruptedException {
+        invalidate(computer);
+        Node node = computer.getNode();
+        FilePath rootPath = node != null ? node.getRootPath() : null;
+        if (rootPath != null) {
+            retrieve(computer, rootPath);
+        }
+    }
+
+    /**
+     * Drops the snapshot of the computer.
+     * @param computer Computer
+     */
+    public static void invalidate(@NonNull Computer computer) {
+        if (SNAPSHOTS.remove(computer) != null) {
+            LOGGER.log(Level.FINE, "Dropped the environment snapshot of {0}", computer.getName());
+        }
+    }
+
+    @NonNull
+    private static Snapshot retrieve(@CheckForNull Computer computer, @NonNull FilePath rootPath)
+            throws IOException, InterruptedException {
+        VirtualChannel channel = rootPath.getChannel();
+        long start = System.nanoTime();
+        Map<String, String> envVars = rootPath.act(new EnvInjectMasterEnvVarsRetriever());
+        EnvInjectRemoteCalls.record(rootPath, envVars, start);
+        Snapshot snapshot = new Snapshot(envVars, channel, VERSIONS.incrementAndGet());
+        if (computer != null && computer.getChannel() == channel) {
+            SNAPSHOTS.put(computer, snapshot);
+            LOGGER.log(Level.FINE, "Stored the environment snapshot {0} of {1}",
+                    new Object[] {snapshot.getVersion(), computer.getName()});
+        }
+        return snapshot;
+    }
+
+    /**
+     * Environment of a node retrieved through a channel.
+     */
+    @Restricted(NoExternalUse.class)
+    public static final class Snapshot {
+
+        @NonNull
+        private final Map<String, String> envVars;
+
+        @NonNull
+        private final WeakReference<VirtualChannel> channel;
+
+        private final long version;
+
+        private Snapshot(@NonNull Map<String, String> envVars, @CheckForNull VirtualChannel channel, long version) {
+            // The controller returns its own live instance, copy it.
+            // The copy is the shared base of the variables of the builds on the node, see OverlayEnvVars
+            this.envVars = Collections.unmodifiableMap(OverlayEnvVars.internAll(envVars));
+            this.channel = new WeakReference<VirtualChannel>(channel);
+            this.version = version;
+        }
+
+        /**
+         * Gets the environment variables.
+         * @return Unmodifiable environment variables
+         */
+        @NonNull
+        public Map<String, String> getEnvVars() {
+            return envVars;
+        }
+
+        /**
+         * Gets the version, which is unique among all snapshots.
+         * @return Version of the snapshot
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        private boolean isFor(@CheckForNull VirtualChannel channel) {
+            return channel != null && this.channel.get() == channel;
+        }
+    }
+}
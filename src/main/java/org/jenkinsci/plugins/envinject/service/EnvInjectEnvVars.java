@@ -30,14 +30,28 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jenkins.util.SystemProperties;
 import org.jenkinsci.plugins.envinject.EnvInjectPluginConfiguration;
 import org.jenkinsci.plugins.envinject.util.EnvInjectExceptionFormatter;
+import org.jenkinsci.plugins.envinject.util.LayeredEnvVars;
+import org.jenkinsci.plugins.envinject.util.MacroTemplate;
 
 /**
  * @author Gregory Boissinot
  */
 public class EnvInjectEnvVars implements Serializable {
 
+    /**
+     * Restores the resolution of variables against each other by repeated full passes over the map,
+     * which was used before the introduction of {@link EnvInjectVarsResolver}.
+     * The results differ only for self references and cycles, which were partially expanded depending on the number of passes,
+     * and for chains the passes stopped resolving too early.
+     */
+    @Restricted(NoExternalUse.class)
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Compatibility switch, modifiable from the script console")
+    public static boolean LEGACY_RESOLUTION = SystemProperties.getBoolean(EnvInjectEnvVars.class.getName() + ".legacyResolution");
+
     EnvInjectLogger logger;
 
     public EnvInjectEnvVars(@NonNull EnvInjectLogger logger) {
@@ -63,9 +77,12 @@ public class EnvInjectEnvVars implements Serializable {
                         new PropertiesVariablesRetriever(
                                 propertiesFilePath, propertiesContent, infraEnvVarsMaster, logger)));
             } else {
-                resultMap.putAll(rootPath.act(
+                long start = System.nanoTime();
+                Map<String, String> nodeVars = rootPath.act(
                         new PropertiesVariablesRetriever(
-                                propertiesFilePath, propertiesContent, infraEnvVarsNode, logger)));
+                                propertiesFilePath, propertiesContent, infraEnvVarsNode, logger));
+                EnvInjectRemoteCalls.record(rootPath, nodeVars, start);
+                resultMap.putAll(nodeVars);
             }
         } catch (IOException e) {
             throw new EnvInjectException(e);
@@ -83,7 +100,10 @@ public class EnvInjectEnvVars implements Serializable {
                                                       @NonNull Map<String, String> currentEnvVars) throws EnvInjectException {
         Map<String, String> resultMap = new LinkedHashMap<String, String>();
         try {
-            resultMap.putAll(rootPath.act(new PropertiesVariablesRetriever(propertiesFilePath, propertiesContent, currentEnvVars, logger)));
+            long start = System.nanoTime();
+            Map<String, String> fileVars = rootPath.act(new PropertiesVariablesRetriever(propertiesFilePath, propertiesContent, currentEnvVars, logger));
+            EnvInjectRemoteCalls.record(rootPath, fileVars, start);
+            resultMap.putAll(fileVars);
         } catch (IOException e) {
             throw new EnvInjectException(e);
         } catch (InterruptedException e) {
@@ -277,6 +297,39 @@ public class EnvInjectEnvVars implements Serializable {
         //0-- Pre-resolve infraEnv vars
         resolveVars(infraEnvVars, infraEnvVars);
 
+        return mergeVariables(LayeredEnvVars.of(infraEnvVars), propertiesEnvVars, groovyMapEnvVars, contribEnvVars).materialize();
+    }
+
+    /**
+     * Same as {@link #getMergedVariables(Map, Map, Map, Map)}, but the variables are merged as layers on top of
+     * the infrastructure variables instead of being copied to a new map.
+     * The infrastructure view is not modified, pre-resolved values are added as a new layer.
+     * @param infraEnvVars Infrastructure variables
+     * @param propertiesEnvVars Variables from properties, resolved in place. The map becomes a layer of the result
+     * @param groovyMapEnvVars Variables from the Groovy script. The map becomes a layer of the result
+     * @param contribEnvVars Variables from contributors. The map becomes a layer of the result
+     * @return View of variables in order infraEnvVars, groovyEnvVars, contribEnvVars, properties
+     * @since TODO
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public LayeredEnvVars getMergedVariablesView(@NonNull LayeredEnvVars infraEnvVars,
+                                                 @NonNull Map<String, String> propertiesEnvVars,
+                                                 @NonNull Map<String, String> groovyMapEnvVars,
+                                                 @NonNull Map<String, String> contribEnvVars) {
+
+        //0-- Pre-resolve infraEnv vars
+        LayeredEnvVars resolvedInfraEnvVars = resolveVars(infraEnvVars);
+
+        return mergeVariables(resolvedInfraEnvVars, propertiesEnvVars, groovyMapEnvVars, contribEnvVars);
+    }
+
+    @NonNull
+    private LayeredEnvVars mergeVariables(@NonNull LayeredEnvVars infraEnvVars,
+                                          @NonNull Map<String, String> propertiesEnvVars,
+                                          @NonNull Map<String, String> groovyMapEnvVars,
+                                          @NonNull Map<String, String> contribEnvVars) {
+
         //1--Resolve properties against infraEnvVars
         resolveVars(propertiesEnvVars, infraEnvVars);
 
@@ -287,12 +340,50 @@ public class EnvInjectEnvVars implements Serializable {
         resolveVars(propertiesEnvVars, contribEnvVars);
 
         //4-- Get All variables in order (infraEnvVars, groovyEnvVars, contribEnvVars, properties)
-        Map<String, String> variables = new LinkedHashMap<String, String>(infraEnvVars);
-        variables.putAll(groovyMapEnvVars);
-        variables.putAll(contribEnvVars);
-        variables.putAll(propertiesEnvVars);
+        return infraEnvVars.with(groovyMapEnvVars).with(contribEnvVars).with(propertiesEnvVars);
+    }
+
+    /**
+     * Resolves variables of the view against each other, like {@code resolveVars(variables, variables)} would do
+     * on a copy of the view.
+     * Only values containing references are copied, changed values are added as a new layer.
+     * @param variables Variables to be resolved
+     * @return View with resolved variables
+     */
+    @NonNull
+    private LayeredEnvVars resolveVars(@NonNull final LayeredEnvVars variables) {
+        if (LEGACY_RESOLUTION) {
+            Map<String, String> resolved = variables.materialize();
+            resolveVars(resolved, resolved);
+            return LayeredEnvVars.of(resolved);
+        }
+
+        // Values without references stay the same
+        final Map<String, String> pending = variables.select(value -> value != null && value.indexOf('$') >= 0);
+        if (pending.isEmpty()) {
+            return variables;
+        }
+
+        //Resolve variables against env
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            String value = MacroTemplate.expand(entry.getValue(), new VariableResolver<String>() {
+                public String resolve(String name) {
+                    return pending.containsKey(name) ? pending.get(name) : variables.get(name);
+                }
+            });
+            entry.setValue(value);
+        }
 
-        return variables;
+        //Resolve variables against variables itself
+        EnvInjectVarsResolver.resolve(pending, variables);
+
+        Map<String, String> changed = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> entry : pending.entrySet()) {
+            if (!entry.getValue().equals(variables.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return variables.with(changed);
     }
 
     public void resolveVars(@NonNull Map<String, String> variables, 
@@ -300,11 +391,24 @@ public class EnvInjectEnvVars implements Serializable {
 
         //Resolve variables against env
         for (Map.Entry<String, String> entry : variables.entrySet()) {
-            String value = Util.replaceMacro(entry.getValue(), env);
+            String value = MacroTemplate.expand(entry.getValue(), env);
             entry.setValue(value);
         }
 
         //Resolve variables against variables itself
+        if (LEGACY_RESOLUTION) {
+            resolveVarsLegacy(variables);
+        } else {
+            EnvInjectVarsResolver.resolve(variables);
+        }
+    }
+
+    /**
+     * Resolves variables against each other by repeating full passes until the number of unresolved variables
+     * stops changing.
+     * Kept for compatibility, see {@link #LEGACY_RESOLUTION}.
+     */
+    private void resolveVarsLegacy(@NonNull Map<String, String> variables) {
         boolean stopToResolveVars = false;
         int nbUnresolvedVar = 0;
 
@@ -361,7 +465,7 @@ public class EnvInjectEnvVars implements Serializable {
             return value;
         }
 
-        return Util.replaceMacro(value, new VariableResolver<String>() {
+        return MacroTemplate.expand(value, new VariableResolver<String>() {
 
             public String resolve(String name) {
                 return "";
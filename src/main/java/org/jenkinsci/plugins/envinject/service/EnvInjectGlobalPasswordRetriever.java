@@ -1,13 +1,10 @@
 package org.jenkinsci.plugins.envinject.service;
 
-import hudson.XmlFile;
 import jenkins.model.Jenkins;
 import org.jenkinsci.lib.envinject.EnvInjectException;
 import org.jenkinsci.plugins.envinject.EnvInjectGlobalPasswordEntry;
 import org.jenkinsci.plugins.envinject.EnvInjectNodeProperty;
 
-import java.io.File;
-import java.io.IOException;
 import java.io.Serializable;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 
@@ -16,19 +13,24 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
  */
 public class EnvInjectGlobalPasswordRetriever implements Serializable {
 
+    /**
+     * Gets the global passwords.
+     * They are served from {@link EnvInjectNodeProperty.EnvInjectNodePropertyDescriptor},
+     * which loads {@code envInject.xml} once and keeps the passwords up to date on configuration.
+     * @return Global passwords, {@code null} if no global passwords are configured
+     * @throws EnvInjectException Operation error
+     */
     @CheckForNull 
     public EnvInjectGlobalPasswordEntry[] getGlobalPasswords() throws EnvInjectException {
-        XmlFile xmlFile = new XmlFile(new File(Jenkins.get().getRootDir(), EnvInjectNodeProperty.EnvInjectNodePropertyDescriptor.ENVINJECT_CONFIG + ".xml"));
-        if (xmlFile.exists()) {
-            EnvInjectNodeProperty.EnvInjectNodePropertyDescriptor desc;
-            try {
-                desc = (EnvInjectNodeProperty.EnvInjectNodePropertyDescriptor) xmlFile.read();
-            } catch (IOException ioe) {
-                throw new EnvInjectException(ioe);
-            }
-            return desc.getEnvInjectGlobalPasswordEntries();
+        EnvInjectNodeProperty.EnvInjectNodePropertyDescriptor descriptor =
+                Jenkins.get().getDescriptorByType(EnvInjectNodeProperty.EnvInjectNodePropertyDescriptor.class);
+        if (descriptor == null) {
+            return null;
         }
-
-        return null;
+        EnvInjectGlobalPasswordEntry[] entries = descriptor.getEnvInjectGlobalPasswordEntries();
+        if (entries.length == 0) {
+            return null;
+        }
+        return entries;
     }
 }
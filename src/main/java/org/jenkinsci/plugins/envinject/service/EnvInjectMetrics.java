@@ -0,0 +1,459 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Controller-wide metrics of EnvInject.
+ * <p>
+ * Metrics are aggregated since the start of the JVM. Each of them is registered as an MXBean
+ * in the {@code org.jenkinsci.plugins.envinject} JMX domain, and all of them are published
+ * in the Prometheus text format by {@code EnvInjectMetricsAction}.
+ * Metrics of operations running on agents, like the properties file cache, are only counted on the controller
+ * when the operation runs on the controller.
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class EnvInjectMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectMetrics.class.getName());
+
+    static final String JMX_DOMAIN = "org.jenkinsci.plugins.envinject";
+
+    /**
+     * Prefix of the metric names in the Prometheus format.
+     */
+    static final String PREFIX = "envinject_";
+
+    private static final ConcurrentMap<String, Metric> METRICS = new ConcurrentHashMap<String, Metric>();
+
+    private EnvInjectMetrics() {
+    }
+
+    /**
+     * Gets a counter without label, it is created on first use.
+     * Callers on hot paths should keep the returned instance.
+     * @param name Name of the metric, e.g. {@code remote_calls_total}
+     * @return Counter
+     */
+    @NonNull
+    public static Counter counter(@NonNull String name) {
+        return counter(name, null, null);
+    }
+
+    /**
+     * Gets a counter, it is created on first use.
+     * @param name Name of the metric, e.g. {@code cache_hits_total}
+     * @param labelName Optional label name, e.g. {@code cache}
+     * @param labelValue Label value, required if there is a label name
+     * @return Counter
+     */
+    @NonNull
+    public static Counter counter(@NonNull String name, @CheckForNull String labelName, @CheckForNull String labelValue) {
+        return get(Counter.class, new Counter(name, labelName, labelValue));
+    }
+
+    /**
+     * Gets a histogram of durations in milliseconds, it is created on first use.
+     * @param name Name of the metric, e.g. {@code phase_duration_milliseconds}
+     * @param labelName Optional label name, e.g. {@code phase}
+     * @param labelValue Label value, required if there is a label name
+     * @return Histogram
+     */
+    @NonNull
+    public static Histogram histogram(@NonNull String name, @CheckForNull String labelName, @CheckForNull String labelValue) {
+        return get(Histogram.class, new Histogram(name, labelName, labelValue));
+    }
+
+    /**
+     * Registers a gauge, which value is computed on read.
+     * A gauge registered with the same name and label replaces the previous one.
+     * @param name Name of the metric, e.g. {@code masking_bytes_per_second}
+     * @param labelName Optional label name
+     * @param labelValue Label value, required if there is a label name
+     * @param value Computes the value
+     */
+    public static void gauge(@NonNull String name, @CheckForNull String labelName, @CheckForNull String labelValue,
+            @NonNull DoubleSupplier value) {
+        Gauge gauge = new Gauge(name, labelName, labelValue, value);
+        METRICS.put(gauge.getKey(), gauge);
+        register(gauge);
+    }
+
+    /**
+     * Gets all metrics.
+     * @return Metrics sorted by name and label
+     */
+    @NonNull
+    public static List<Metric> getMetrics() {
+        List<Metric> metrics = new ArrayList<Metric>(METRICS.values());
+        // Samples of a metric must be grouped
+        metrics.sort(Comparator.comparing(Metric::getName).thenComparing(Metric::getKey));
+        return metrics;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     * @param writer Output
+     * @throws IOException Write failure
+     */
+    public static void writePrometheus(@NonNull Writer writer) throws IOException {
+        String previousName = null;
+        for (Metric metric : getMetrics()) {
+            if (!metric.getName().equals(previousName)) {
+                writer.write("# TYPE " + PREFIX + metric.getName() + " " + metric.getType() + "\n");
+                previousName = metric.getName();
+            }
+            metric.writePrometheus(writer);
+        }
+    }
+
+    @NonNull
+    private static <T extends Metric> T get(@NonNull Class<T> type, @NonNull T created) {
+        Metric existing = METRICS.putIfAbsent(created.getKey(), created);
+        if (existing == null) {
+            register(created);
+            return created;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException("Metric " + created.getKey() + " is a " + existing.getType());
+        }
+        return type.cast(existing);
+    }
+
+    private static void register(@NonNull Metric metric) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + metric.getClass().getSimpleName()
+                    + ",name=" + ObjectName.quote(metric.getKey()));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(metric, objectName);
+        } catch (JMException | RuntimeException e) {
+            // Metrics must never break a build
+            LOGGER.log(Level.FINE, "Cannot register the metric " + metric.getKey() + " in JMX", e);
+        }
+    }
+
+    @NonNull
+    private static String format(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value)) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%s", value);
+    }
+
+    /**
+     * Base class of metrics.
+     */
+    @Restricted(NoExternalUse.class)
+    public abstract static class Metric {
+
+        @NonNull
+        private final String name;
+
+        @CheckForNull
+        private final String labelName;
+
+        @CheckForNull
+        private final String labelValue;
+
+        Metric(@NonNull String name, @CheckForNull String labelName, @CheckForNull String labelValue) {
+            if (labelName != null && labelValue == null) {
+                throw new IllegalArgumentException("Missing value of the label " + labelName + " of " + name);
+            }
+            this.name = name;
+            this.labelName = labelName;
+            this.labelValue = labelName != null ? labelValue : null;
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        @CheckForNull
+        public String getLabelName() {
+            return labelName;
+        }
+
+        @CheckForNull
+        public String getLabelValue() {
+            return labelValue;
+        }
+
+        @NonNull
+        String getKey() {
+            return labelName != null ? name + "{" + labelName + "=" + labelValue + "}" : name;
+        }
+
+        /**
+         * Gets the Prometheus type of the metric.
+         */
+        @NonNull
+        abstract String getType();
+
+        abstract void writePrometheus(@NonNull Writer writer) throws IOException;
+
+        void writeSample(@NonNull Writer writer, @NonNull String suffix, @CheckForNull String extraLabel,
+                @NonNull String value) throws IOException {
+            writer.write(PREFIX);
+            writer.write(name);
+            writer.write(suffix);
+            if (labelName != null || extraLabel != null) {
+                writer.write('{');
+                if (labelName != null) {
+                    writer.write(labelName + "=\"" + escape(labelValue) + "\"");
+                    if (extraLabel != null) {
+                        writer.write(',');
+                    }
+                }
+                if (extraLabel != null) {
+                    writer.write(extraLabel);
+                }
+                writer.write('}');
+            }
+            writer.write(' ');
+            writer.write(value);
+            writer.write('\n');
+        }
+
+        @NonNull
+        private static String escape(@CheckForNull String value) {
+            if (value == null) {
+                return "";
+            }
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    /**
+     * JMX view of a {@link Counter}.
+     */
+    @Restricted(NoExternalUse.class)
+    public interface CounterMXBean {
+
+        long getValue();
+    }
+
+    /**
+     * Monotonic counter.
+     */
+    @Restricted(NoExternalUse.class)
+    public static final class Counter extends Metric implements CounterMXBean {
+
+        private final LongAdder value = new LongAdder();
+
+        private Counter(@NonNull String name, @CheckForNull String labelName, @CheckForNull String labelValue) {
+            super(name, labelName, labelValue);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        /**
+         * Adds to the counter.
+         * @param delta Non-negative amount
+         */
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        @Override
+        public long getValue() {
+            return value.sum();
+        }
+
+        @Override
+        String getType() {
+            return "counter";
+        }
+
+        @Override
+        void writePrometheus(@NonNull Writer writer) throws IOException {
+            writeSample(writer, "", null, Long.toString(value.sum()));
+        }
+    }
+
+    /**
+     * JMX view of a {@link Gauge}.
+     */
+    @Restricted(NoExternalUse.class)
+    public interface GaugeMXBean {
+
+        double getValue();
+    }
+
+    /**
+     * Value computed on read.
+     */
+    @Restricted(NoExternalUse.class)
+    public static final class Gauge extends Metric implements GaugeMXBean {
+
+        @NonNull
+        private final DoubleSupplier value;
+
+        private Gauge(@NonNull String name, @CheckForNull String labelName, @CheckForNull String labelValue,
+                @NonNull DoubleSupplier value) {
+            super(name, labelName, labelValue);
+            this.value = value;
+        }
+
+        @Override
+        public double getValue() {
+            return value.getAsDouble();
+        }
+
+        @Override
+        String getType() {
+            return "gauge";
+        }
+
+        @Override
+        void writePrometheus(@NonNull Writer writer) throws IOException {
+            writeSample(writer, "", null, format(getValue()));
+        }
+    }
+
+    /**
+     * JMX view of a {@link Histogram}.
+     */
+    @Restricted(NoExternalUse.class)
+    public interface HistogramMXBean {
+
+        long getCount();
+
+        long getSumMillis();
+
+        long getMaxMillis();
+
+        double getMeanMillis();
+
+        long[] getBucketBoundsMillis();
+
+        long[] getBucketCounts();
+    }
+
+    /**
+     * Histogram of durations in milliseconds with fixed buckets.
+     */
+    @Restricted(NoExternalUse.class)
+    public static final class Histogram extends Metric implements HistogramMXBean {
+
+        /**
+         * Upper bounds of the buckets, the last bucket has no upper bound.
+         */
+        private static final long[] BOUNDS = {1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong sum = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(@NonNull String name, @CheckForNull String labelName, @CheckForNull String labelValue) {
+            super(name, labelName, labelValue);
+        }
+
+        /**
+         * Records a duration.
+         * @param millis Duration in milliseconds
+         */
+        public void record(long millis) {
+            int bucket = Arrays.binarySearch(BOUNDS, millis);
+            buckets.incrementAndGet(bucket >= 0 ? bucket : -bucket - 1);
+            count.incrementAndGet();
+            sum.addAndGet(millis);
+            long current;
+            while (millis > (current = max.get()) && !max.compareAndSet(current, millis)) {
+                // retry
+            }
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public long getSumMillis() {
+            return sum.get();
+        }
+
+        @Override
+        public long getMaxMillis() {
+            return max.get();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        @Override
+        public long[] getBucketBoundsMillis() {
+            return BOUNDS.clone();
+        }
+
+        /**
+         * Gets the number of durations per bucket, the last one counts durations above all bounds.
+         * @return Non-cumulative counts
+         */
+        @Override
+        public long[] getBucketCounts() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+        @Override
+        String getType() {
+            return "histogram";
+        }
+
+        @Override
+        void writePrometheus(@NonNull Writer writer) throws IOException {
+            long[] counts = getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String bound = i < BOUNDS.length ? Long.toString(BOUNDS[i]) : "+Inf";
+                writeSample(writer, "_bucket", "le=\"" + bound + "\"", Long.toString(cumulative));
+            }
+            writeSample(writer, "_sum", null, Long.toString(sum.get()));
+            writeSample(writer, "_count", null, Long.toString(cumulative));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.FilePath;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+/**
+ * Counts the agent round-trips made by EnvInject in the current thread.
+ * <p>
+ * Only calls through a remote channel are counted. Bytes are estimated from the returned variables,
+ * the remoting framing and other payloads are not included.
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class EnvInjectRemoteCalls {
+
+    private static final ThreadLocal<long[]> COUNTS = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private static final EnvInjectMetrics.Counter CALLS = EnvInjectMetrics.counter("remote_calls_total");
+
+    private static final EnvInjectMetrics.Counter BYTES = EnvInjectMetrics.counter("remote_received_bytes_total");
+
+    private static final EnvInjectMetrics.Histogram DURATION = EnvInjectMetrics.histogram("remote_call_duration_milliseconds", null, null);
+
+    private EnvInjectRemoteCalls() {
+    }
+
+    /**
+     * Records a call made through the channel of the path.
+     * @param path Path the call has been made on
+     * @param result Result of the call
+     * @param startNanos {@link System#nanoTime()} before the call
+     */
+    public static void record(@CheckForNull FilePath path, @CheckForNull Object result, long startNanos) {
+        if (path == null || !path.isRemote()) {
+            return;
+        }
+        long bytes = estimateBytes(result);
+        long[] counts = COUNTS.get();
+        counts[0]++;
+        counts[1] += bytes;
+        CALLS.increment();
+        BYTES.add(bytes);
+        DURATION.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Gets the number of calls made by the current thread so far.
+     * @return Number of calls
+     */
+    public static long getCalls() {
+        return COUNTS.get()[0];
+    }
+
+    /**
+     * Gets the estimated number of bytes received by the current thread so far.
+     * @return Number of bytes
+     */
+    public static long getBytes() {
+        return COUNTS.get()[1];
+    }
+
+    static long estimateBytes(@CheckForNull Object value) {
+        if (value instanceof String) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8).length;
+        }
+        if (value instanceof Map) {
+            long bytes = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += estimateBytes(entry.getKey()) + estimateBytes(entry.getValue());
+            }
+            return bytes;
+        }
+        if (value instanceof Collection) {
+            long bytes = 0;
+            for (Object item : (Collection<?>) value) {
+                bytes += estimateBytes(item);
+            }
+            return bytes;
+        }
+        return value instanceof Number || value instanceof Boolean ? 8 : 0;
+    }
+
+    /**
+     * Calls and bytes of the current thread at some point.
+     */
+    @Restricted(NoExternalUse.class)
+    public static final class Mark {
+
+        private final long calls;
+
+        private final long bytes;
+
+        public Mark() {
+            this.calls = getCalls();
+            this.bytes = getBytes();
+        }
+
+        /**
+         * Gets the calls made by the current thread since the mark.
+         * @return Number of calls
+         */
+        public long getCallsSince() {
+            return getCalls() - calls;
+        }
+
+        /**
+         * Gets the bytes received by the current thread since the mark.
+         * @return Number of bytes
+         */
+        public long getBytesSince() {
+            return getBytes() - bytes;
+        }
+    }
+}
@@ -68,7 +68,9 @@ public class EnvInjectScriptExecutor {
             launcher.getListener().getLogger().println(String.format("Executing '%s'.", scriptFilePath));
             ArgumentListBuilder cmds = new ArgumentListBuilder();
             cmds.addTokenized(scriptFilePath);
+            long start = System.nanoTime();
             int cmdCode = launcher.launch().cmds(cmds).stdout(launcher.getListener()).envs(scriptExecutionEnvVars).pwd(scriptExecutionRoot).join();
+            EnvInjectRemoteCalls.record(scriptExecutionRoot, null, start);
             if (cmdCode != 0) {
                 logger.info(String.format("Script executed. The exit code is %s.", cmdCode));
             } else {
@@ -93,10 +95,14 @@ public class EnvInjectScriptExecutor {
                 batchRunner = new BatchFile(scriptContent);
             }
 
+            long start = System.nanoTime();
             FilePath tmpFile = batchRunner.createScriptFile(scriptExecutionRoot);
+            EnvInjectRemoteCalls.record(scriptExecutionRoot, null, start);
             logger.info(String.format("Executing and processing the following script content: %n%s%n", scriptContent));
+            start = System.nanoTime();
             int cmdCode = launcher.launch().cmds(batchRunner.buildCommandLine(tmpFile)).stdout(launcher.getListener())
                     .envs(scriptExecutionEnvVars).pwd(scriptExecutionRoot).join();
+            EnvInjectRemoteCalls.record(scriptExecutionRoot, null, start);
             if (cmdCode != 0) {
                 logger.info(String.format("Script executed. The exit code is %s.", cmdCode));
             } else {
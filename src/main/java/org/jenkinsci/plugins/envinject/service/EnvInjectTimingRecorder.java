@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.model.Run;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.envinject.EnvInjectTimingAction;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Records the duration of the phases of an EnvInject step.
+ * <p>
+ * The timings are stored in the {@link EnvInjectTimingAction} of the run
+ * and aggregated in the {@code phase_duration_milliseconds} histograms of {@link EnvInjectMetrics}.
+ * Phases still running when the step finishes, because it failed, are recorded as failed by {@link #finish()},
+ * which is called in a {@code finally} block.
+ * The recording can be disabled with the {@code EnvInjectTimingRecorder.disabled} system property.
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class EnvInjectTimingRecorder {
+
+    private static final boolean DISABLED = SystemProperties.getBoolean(
+            EnvInjectTimingRecorder.class.getName() + ".disabled");
+
+    /**
+     * Phases of the EnvInject steps.
+     */
+    @Restricted(NoExternalUse.class)
+    public enum Phase {
+        NODE_VARIABLES("Node variables"),
+        SYSTEM_VARIABLES("System variables"),
+        BUILD_VARIABLES("Build variables"),
+        SCRIPT("Script"),
+        GROOVY_SCRIPT("Groovy script"),
+        PROPERTIES("Properties"),
+        CONTRIBUTORS("Contributors"),
+        ACTION("Action persistence");
+
+        @NonNull
+        private final String displayName;
+
+        Phase(@NonNull String displayName) {
+            this.displayName = displayName;
+        }
+
+        @NonNull
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    @NonNull
+    private final Run<?, ?> run;
+
+    @NonNull
+    private final String step;
+
+    private final List<EnvInjectTimingAction.Entry> entries = new ArrayList<EnvInjectTimingAction.Entry>();
+
+    /**
+     * Timings started, but not stopped yet.
+     */
+    private final List<Timing> running = new ArrayList<Timing>();
+
+    /**
+     * Constructor.
+     * @param run Run the step belongs to
+     * @param step Name of the step, e.g. {@code Build wrapper}
+     */
+    public EnvInjectTimingRecorder(@NonNull Run<?, ?> run, @NonNull String step) {
+        this.run = run;
+        this.step = step;
+    }
+
+    /**
+     * Starts the timing of a phase.
+     * @param phase Phase
+     * @return Timing to stop once the phase is done
+     */
+    @NonNull
+    public Timing start(@NonNull Phase phase) {
+        return new Timing(phase);
+    }
+
+    /**
+     * Stores the recorded timings in the run.
+     * Phases, which are still running, are stopped and recorded as failed.
+     * Phases stopped later are not stored.
+     */
+    public void finish() {
+        for (Timing timing : new ArrayList<Timing>(running)) {
+            timing.stop(true);
+        }
+        if (DISABLED || entries.isEmpty()) {
+            return;
+        }
+        EnvInjectTimingAction.addEntries(run, entries);
+        entries.clear();
+    }
+
+    /**
+     * Timing of a phase in progress.
+     */
+    @Restricted(NoExternalUse.class)
+    public final class Timing {
+
+        @NonNull
+        private final Phase phase;
+
+        private final long start = System.nanoTime();
+
+        @NonNull
+        private final EnvInjectRemoteCalls.Mark remoteCalls = new EnvInjectRemoteCalls.Mark();
+
+        private Timing(@NonNull Phase phase) {
+            this.phase = phase;
+            running.add(this);
+        }
+
+        /**
+         * Stops the timing and records it.
+         * Timings are only recorded once.
+         */
+        public void stop() {
+            stop(false);
+        }
+
+        private void stop(boolean failed) {
+            if (!running.remove(this) || DISABLED) {
+                return;
+            }
+            long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            EnvInjectMetrics.histogram("phase_duration_milliseconds", "phase", phase.name().toLowerCase(Locale.ENGLISH)).record(durationMillis);
+            entries.add(new EnvInjectTimingAction.Entry(step, phase.getDisplayName(), durationMillis,
+                    remoteCalls.getCallsSince(), remoteCalls.getBytesSince(), failed));
+        }
+    }
+}
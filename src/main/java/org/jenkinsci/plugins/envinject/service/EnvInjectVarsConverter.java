@@ -0,0 +1,431 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import com.google.common.util.concurrent.RateLimiter;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.lib.envinject.EnvInjectException;
+import org.jenkinsci.lib.envinject.service.EnvInjectSavable;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Converts the legacy {@value EnvInjectVarsStore#LEGACY_FILE_NAME} files of existing builds
+ * into {@link EnvInjectVarsStore}, in the background.
+ * <p>
+ * Starting the conversion is the explicit opt-in of the existing builds, their legacy files are removed.
+ * It does not change where new builds store their variables, see {@link EnvInjectVarsStore#ENABLED}.
+ * <p>
+ * Jobs of all folders are converted one after the other, in the order of their full names,
+ * and the builds of a job in the order of their numbers, so consecutive builds share their base.
+ * The I/O is throttled to a maximum number of megabytes per second. The progress is saved in
+ * {@code JENKINS_HOME} after each job, and a conversion interrupted by a restart is resumed after the next job,
+ * builds already converted have no legacy file anymore.
+ * Legacy files modified recently are skipped, since their build may still be running.
+ * A legacy file is only removed once its variables are equal to the ones read by the EnvInject API,
+ * so builds, whose files cannot be read the same way, keep them. The API reads the file directly,
+ * builds are not loaded, and both reads are throttled.
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class EnvInjectVarsConverter {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectVarsConverter.class.getName());
+
+    /**
+     * Default maximum I/O rate, in megabytes per second.
+     */
+    static final double DEFAULT_MAX_MEGABYTES_PER_SECOND = SystemProperties.getInteger(
+            EnvInjectVarsConverter.class.getName() + ".maxMegabytesPerSecond", 10);
+
+    /**
+     * Minimum age of the converted legacy files.
+     */
+    private static final long MIN_AGE = TimeUnit.HOURS.toMillis(1);
+
+    private static final EnvInjectMetrics.Counter CONVERTED_BUILDS = EnvInjectMetrics.counter("vars_converted_builds_total");
+
+    @CheckForNull
+    private static EnvInjectVarsConverter instance;
+
+    @NonNull
+    private final EnvInjectVarsStore store;
+
+    @NonNull
+    private final XmlFile progressFile;
+
+    @NonNull
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "EnvInject variables converter"));
+
+    @NonNull
+    private volatile Progress progress = new Progress();
+
+    /**
+     * Full name of the job being converted.
+     */
+    @CheckForNull
+    private volatile String currentJob;
+
+    private volatile int totalJobs;
+
+    private volatile boolean stopRequested;
+
+    private boolean active;
+
+    EnvInjectVarsConverter(@NonNull EnvInjectVarsStore store, @NonNull File progressFile) {
+        this.store = store;
+        this.progressFile = new XmlFile(Jenkins.XSTREAM2, progressFile);
+    }
+
+    /**
+     * Gets the converter of {@code JENKINS_HOME}.
+     * @return Converter
+     */
+    @NonNull
+    public static synchronized EnvInjectVarsConverter get() {
+        if (instance == null) {
+            instance = new EnvInjectVarsConverter(EnvInjectVarsStore.get(),
+                    new File(Jenkins.get().getRootDir(), EnvInjectVarsConverter.class.getName() + ".xml"));
+            instance.load();
+        }
+        return instance;
+    }
+
+    /**
+     * Resumes the conversion, which was running when Jenkins stopped.
+     */
+    @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED)
+    public static void resume() {
+        EnvInjectVarsConverter converter = get();
+        if (converter.progress.running) {
+            LOGGER.log(Level.INFO, "Resuming the conversion of the injected variables after {0}", converter.progress.lastJob);
+            converter.start(converter.progress.maxMegabytesPerSecond, false);
+        }
+    }
+
+    /**
+     * Starts the conversion, unless it is already running.
+     * @param maxMegabytesPerSecond Maximum I/O rate, in megabytes per second
+     * @param restart {@code true} to convert all jobs again, {@code false} to resume after the last converted job
+     * @return {@code false} if the conversion was already running
+     */
+    public synchronized boolean start(double maxMegabytesPerSecond, boolean restart) {
+        if (active) {
+            return false;
+        }
+        if (!(maxMegabytesPerSecond > 0)) {
+            throw new IllegalArgumentException("The maximum rate must be positive: " + maxMegabytesPerSecond);
+        }
+        Progress started = restart || progress.finished ? new Progress() : progress.copy();
+        started.running = true;
+        started.finished = false;
+        started.maxMegabytesPerSecond = maxMegabytesPerSecond;
+        progress = started;
+        save();
+        active = true;
+        stopRequested = false;
+        executor.submit(this::run);
+        return true;
+    }
+
+    /**
+     * Requests the conversion to stop, it can be resumed later.
+     */
+    public synchronized void stop() {
+        if (active) {
+            stopRequested = true;
+        }
+    }
+
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    @NonNull
+    public Progress getProgress() {
+        return progress;
+    }
+
+    @CheckForNull
+    public String getCurrentJob() {
+        return currentJob;
+    }
+
+    public int getTotalJobs() {
+        return totalJobs;
+    }
+
+    private void run() {
+        Progress current = progress;
+        try {
+            List<Job<?, ?>> jobs = new ArrayList<Job<?, ?>>();
+            try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+                for (Job<?, ?> job : Jenkins.get().allItems(Job.class)) {
+                    jobs.add(job);
+                }
+            }
+            jobs.sort(Comparator.comparing(Job::getFullName));
+            totalJobs = jobs.size();
+            RateLimiter limiter = RateLimiter.create(current.maxMegabytesPerSecond * 1024 * 1024);
+            for (Job<?, ?> job : jobs) {
+                String name = job.getFullName();
+                if (current.lastJob != null && name.compareTo(current.lastJob) <= 0) {
+                    continue;
+                }
+                currentJob = name;
+                if (!convertBuilds(job.getBuildDir(), EnvInjectVarsConverter::getApiVariables, limiter, current)) {
+                    return;
+                }
+                current.lastJob = name;
+                current.jobs++;
+                save();
+            }
+            current.running = false;
+            current.finished = true;
+            save();
+            LOGGER.log(Level.INFO, "Converted the injected variables of {0} builds, {1} bytes were reclaimed",
+                    new Object[] {current.builds, current.bytesReclaimed});
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to convert the injected variables", e);
+        } finally {
+            currentJob = null;
+            synchronized (this) {
+                if (stopRequested) {
+                    // Stopped by the administrator, it is not resumed after a restart
+                    current.running = false;
+                    save();
+                }
+                active = false;
+            }
+        }
+    }
+
+    /**
+     * Converts the builds of a job.
+     * @param jobBuildDir Directory of the builds of the job
+     * @param apiVariables Variables of a build by root directory, as read by the EnvInject API
+     * @param limiter Limiter of the read and written bytes
+     * @param progress Updated progress
+     * @return {@code false} if the conversion was stopped
+     */
+    boolean convertBuilds(@NonNull File jobBuildDir, @NonNull Function<File, Map<String, String>> apiVariables,
+            @NonNull RateLimiter limiter, @NonNull Progress progress) {
+        File[] buildDirs = jobBuildDir.listFiles((File dir, String name) -> name.matches("[0-9]+"));
+        if (buildDirs == null) {
+            return true;
+        }
+        Arrays.sort(buildDirs, Comparator.comparingLong((File dir) -> Long.parseLong(dir.getName())));
+        long maxModified = System.currentTimeMillis() - MIN_AGE;
+        File referenceBuildDir = null;
+        for (File buildDir : buildDirs) {
+            if (stopRequested) {
+                return false;
+            }
+            File legacyFile = new File(buildDir, EnvInjectVarsStore.LEGACY_FILE_NAME);
+            long length = legacyFile.length();
+            if (legacyFile.isFile() && legacyFile.lastModified() < maxModified) {
+                acquire(limiter, length);
+                try {
+                    long written = 0;
+                    if (EnvInjectVarsStore.exists(buildDir)) {
+                        // Stored, but the legacy file could not be removed
+                        Files.delete(legacyFile.toPath());
+                    } else {
+                        Map<String, String> variables = readLegacyFile(legacyFile);
+                        // Read again by the API
+                        acquire(limiter, length);
+                        if (!variables.equals(apiVariables.apply(buildDir))) {
+                            throw new IOException("The variables differ from the ones read by the EnvInject API, "
+                                    + legacyFile + " is kept");
+                        }
+                        store.save(buildDir, variables, referenceBuildDir);
+                        written = new File(buildDir, EnvInjectVarsStore.FILE_NAME).length();
+                        acquire(limiter, written);
+                    }
+                    progress.builds++;
+                    progress.bytesRead += length;
+                    progress.bytesReclaimed += length - written;
+                    CONVERTED_BUILDS.increment();
+                } catch (IOException e) {
+                    progress.failures++;
+                    LOGGER.log(Level.WARNING, "Failed to convert the injected variables of " + buildDir, e);
+                }
+            }
+            if (EnvInjectVarsStore.exists(buildDir)) {
+                referenceBuildDir = buildDir;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the legacy file of a build like the EnvInject API, without loading the build.
+     */
+    @CheckForNull
+    private static Map<String, String> getApiVariables(@NonNull File buildDir) {
+        try {
+            return new EnvInjectSavable().getEnvironment(buildDir);
+        } catch (EnvInjectException e) {
+            LOGGER.log(Level.FINE, "The EnvInject API cannot read the variables of " + buildDir, e);
+            return null;
+        }
+    }
+
+    private static void acquire(@NonNull RateLimiter limiter, long bytes) {
+        if (bytes > 0) {
+            limiter.acquire((int) Math.min(Integer.MAX_VALUE, bytes));
+        }
+    }
+
+    /**
+     * Reads a legacy file, written with the default charset.
+     * Each line is a variable, the name is separated from the value by the first {@code =}.
+     * The result is compared with the variables loaded by the EnvInject API before the file is converted.
+     * @param file Legacy file
+     * @return Variables
+     * @throws IOException Read failure
+     */
+    @NonNull
+    static Map<String, String> readLegacyFile(@NonNull File file) throws IOException {
+        Map<String, String> variables = new LinkedHashMap<String, String>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), Charset.defaultCharset())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf('=');
+                if (separator > 0) {
+                    variables.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        }
+        return variables;
+    }
+
+    private void load() {
+        if (progressFile.exists()) {
+            try {
+                progress = (Progress) progressFile.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read the progress of the conversion in " + progressFile, e);
+            }
+        }
+    }
+
+    private synchronized void save() {
+        try {
+            progressFile.write(progress);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the progress of the conversion in " + progressFile, e);
+        }
+    }
+
+    /**
+     * Progress of a conversion, saved after each job.
+     */
+    @Restricted(NoExternalUse.class)
+    public static final class Progress {
+
+        /**
+         * Whether the conversion is resumed after a restart.
+         */
+        volatile boolean running;
+
+        volatile boolean finished;
+
+        /**
+         * Full name of the last converted job.
+         */
+        @CheckForNull
+        volatile String lastJob;
+
+        volatile double maxMegabytesPerSecond = DEFAULT_MAX_MEGABYTES_PER_SECOND;
+
+        volatile long jobs;
+
+        volatile long builds;
+
+        volatile long failures;
+
+        volatile long bytesRead;
+
+        /**
+         * Size of the legacy files minus the size of the build files, the shared bases are not counted.
+         */
+        volatile long bytesReclaimed;
+
+        @NonNull
+        Progress copy() {
+            Progress copy = new Progress();
+            copy.running = running;
+            copy.finished = finished;
+            copy.lastJob = lastJob;
+            copy.maxMegabytesPerSecond = maxMegabytesPerSecond;
+            copy.jobs = jobs;
+            copy.builds = builds;
+            copy.failures = failures;
+            copy.bytesRead = bytesRead;
+            copy.bytesReclaimed = bytesReclaimed;
+            return copy;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @CheckForNull
+        public String getLastJob() {
+            return lastJob;
+        }
+
+        public double getMaxMegabytesPerSecond() {
+            return maxMegabytesPerSecond;
+        }
+
+        public long getJobs() {
+            return jobs;
+        }
+
+        public long getBuilds() {
+            return builds;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesReclaimed() {
+            return bytesReclaimed;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.util.VariableResolver;
+import org.jenkinsci.plugins.envinject.util.MacroTemplate;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Resolves variables against each other using a dependency graph.
+ * <p>
+ * Each value is compiled once into a {@link MacroTemplate} to find its {@code $VAR} and {@code ${VAR}} references.
+ * Variables are then expanded in topological order, so every value is rewritten exactly once, after all variables it references are final.
+ * <ul>
+ *     <li>A reference of a variable to itself ({@code FOO=$FOO-X}) is never expanded.</li>
+ *     <li>References between members of a cycle ({@code A=$B}, {@code B=$A}) are left as is,
+ *         references from cycle members to other variables are expanded.</li>
+ *     <li>References to unknown variables are left as is.</li>
+ *     <li>Like the repeated passes of {@code Util.replaceMacro} used before, {@code $$} becomes {@code $}
+ *         and the references it reveals are expanded too: {@code $$B} gives the value of {@code B}.
+ *         Values with escaped dollar signs are expanded again until they have none, at most once per dollar sign.</li>
+ * </ul>
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class EnvInjectVarsResolver {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectVarsResolver.class.getName());
+
+    private static final int[] NO_EDGES = new int[0];
+
+    private static final EnvInjectMetrics.Counter RUNS = EnvInjectMetrics.counter("resolver_runs_total");
+
+    private static final EnvInjectMetrics.Counter EXPANSIONS = EnvInjectMetrics.counter("resolver_expansions_total");
+
+    private static final EnvInjectMetrics.Counter UNRESOLVED = EnvInjectMetrics.counter("resolver_unresolved_variables_total");
+
+    private EnvInjectVarsResolver() {
+    }
+
+    /**
+     * Resolves variables against each other.
+     * Values are updated in place, the key set and the iteration order of the map are preserved.
+     * @param variables Variables to be resolved
+     * @return Names of variables, which participate in reference cycles and hence could not be fully resolved
+     */
+    @NonNull
+    public static Set<String> resolve(@NonNull Map<String, String> variables) {
+        return resolve(variables, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Resolves variables against each other and against constants.
+     * It gives the same result as resolving the union of both maps, if values of constants do not contain references.
+     * @param variables Variables to be resolved
+     * @param constants Already resolved variables, used when a name is not defined in {@code variables}
+     * @return Names of variables, which participate in reference cycles and hence could not be fully resolved
+     */
+    @NonNull
+    public static Set<String> resolve(@NonNull Map<String, String> variables, @NonNull Map<String, String> constants) {
+        final int size = variables.size();
+        RUNS.increment();
+        if (size == 0) {
+            return Collections.emptySet();
+        }
+
+        // Index the variables
+        @SuppressWarnings("unchecked")
+        final Map.Entry<String, String>[] entries = variables.entrySet().toArray(new Map.Entry[size]);
+        final Map<String, Integer> indexes = new HashMap<String, Integer>(size * 2);
+        for (int i = 0; i < size; i++) {
+            indexes.put(entries[i].getKey(), i);
+        }
+
+        // Build the dependency graph, self references are ignored
+        final MacroTemplate[] templates = new MacroTemplate[size];
+        final int[][] dependencies = new int[size][];
+        for (int i = 0; i < size; i++) {
+            String value = entries[i].getValue();
+            templates[i] = value == null || value.indexOf('$') < 0 ? null : MacroTemplate.compile(value);
+            dependencies[i] = getDependencies(templates[i], i, indexes);
+        }
+
+        // Expand in topological order, dependencies first
+        int expansions = 0;
+        final int[] components = new int[size];
+        final Set<String> cyclicVars = new LinkedHashSet<String>();
+        for (int[] component : getStronglyConnectedComponents(dependencies)) {
+            final int componentId = component[0];
+            for (int node : component) {
+                components[node] = componentId + 1;
+            }
+            if (component.length > 1) {
+                for (int node : component) {
+                    cyclicVars.add(entries[node].getKey());
+                }
+            }
+            for (final int node : component) {
+                if (templates[node] == null) {
+                    continue;
+                }
+                final VariableResolver<String> resolver = name -> {
+                    Integer index = indexes.get(name);
+                    if (index == null) {
+                        return constants.get(name);
+                    }
+                    if (index == node || components[index] == components[node]) {
+                        return null;
+                    }
+                    return entries[index].getValue();
+                };
+                final String source = entries[node].getValue();
+                MacroTemplate template = templates[node];
+                String value = template.expand(resolver);
+                for (int pass = countDollars(source); template.hasEscapes() && pass > 1 && value.indexOf('$') >= 0; pass--) {
+                    template = MacroTemplate.compile(value);
+                    value = template.expand(resolver);
+                }
+                if (!value.equals(source)) {
+                    entries[node].setValue(value);
+                    expansions++;
+                }
+            }
+        }
+        EXPANSIONS.add(expansions);
+        UNRESOLVED.add(cyclicVars.size());
+
+        if (!cyclicVars.isEmpty()) {
+            LOGGER.log(Level.FINE, "Cannot fully resolve variables with cyclic references: {0}", cyclicVars);
+        }
+        return cyclicVars;
+    }
+
+    /**
+     * Gets the variables referenced by the value, including the references revealed by escaped dollar signs.
+     */
+    @NonNull
+    private static int[] getDependencies(@CheckForNull MacroTemplate template, int self, @NonNull Map<String, Integer> indexes) {
+        if (template == null) {
+            return NO_EDGES;
+        }
+        Set<String> names = new LinkedHashSet<String>(template.getReferencedNames());
+        for (int pass = countDollars(template.getSource()); template.hasEscapes() && pass > 1; pass--) {
+            // Unescape only, references are kept
+            template = MacroTemplate.compile(template.expand(name -> null));
+            names.addAll(template.getReferencedNames());
+        }
+        if (names.isEmpty()) {
+            return NO_EDGES;
+        }
+        int[] result = NO_EDGES;
+        int count = 0;
+        for (String name : names) {
+            Integer index = indexes.get(name);
+            if (index != null && index != self) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, Math.max(4, count * 2));
+                }
+                result[count++] = index;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    private static int countDollars(@NonNull String value) {
+        int count = 0;
+        for (int i = value.indexOf('$'); i >= 0; i = value.indexOf('$', i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Computes strongly connected components with an iterative Tarjan algorithm,
+     * so long reference chains do not overflow the stack.
+     * @return Components in reverse topological order, i.e. each component comes after all components it depends on
+     */
+    @NonNull
+    private static List<int[]> getStronglyConnectedComponents(@NonNull int[][] dependencies) {
+        final int size = dependencies.length;
+        final int[] index = new int[size];
+        final int[] lowLink = new int[size];
+        final boolean[] onStack = new boolean[size];
+        Arrays.fill(index, -1);
+
+        final int[] stack = new int[size];
+        int stackSize = 0;
+        final int[] callStack = new int[size];
+        final int[] edgePositions = new int[size];
+        int nextIndex = 0;
+
+        final List<int[]> components = new ArrayList<int[]>();
+        for (int root = 0; root < size; root++) {
+            if (index[root] != -1) {
+                continue;
+            }
+            int depth = 0;
+            callStack[depth] = root;
+            edgePositions[root] = 0;
+            index[root] = lowLink[root] = nextIndex++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+
+            while (depth >= 0) {
+                final int node = callStack[depth];
+                final int[] edges = dependencies[node];
+                if (edgePositions[node] < edges.length) {
+                    final int target = edges[edgePositions[node]++];
+                    if (index[target] == -1) {
+                        index[target] = lowLink[target] = nextIndex++;
+                        stack[stackSize++] = target;
+                        onStack[target] = true;
+                        edgePositions[target] = 0;
+                        callStack[++depth] = target;
+                    } else if (onStack[target]) {
+                        lowLink[node] = Math.min(lowLink[node], index[target]);
+                    }
+                    continue;
+                }
+
+                // All edges visited
+                if (lowLink[node] == index[node]) {
+                    int start = stackSize;
+                    do {
+                        start--;
+                        onStack[stack[start]] = false;
+                    } while (stack[start] != node);
+                    components.add(Arrays.copyOfRange(stack, start, stackSize));
+                    stackSize = start;
+                }
+                depth--;
+                if (depth >= 0) {
+                    final int parent = callStack[depth];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+                }
+            }
+        }
+        return components;
+    }
+}
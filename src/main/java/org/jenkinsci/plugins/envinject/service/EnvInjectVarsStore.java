@@ -0,0 +1,538 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.envinject.util.OverlayEnvVars;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Compact storage of the injected variables of builds.
+ * <p>
+ * Builds of a job usually inject nearly the same variables. Each build stores only the difference
+ * with a base map in {@value #FILE_NAME}, compressed. Base maps are stored once in a shared directory,
+ * named after the SHA-256 hash of their content, so builds of all jobs with the same variables share them.
+ * A build takes the base of the previous build, or its own variables become a new base when
+ * the difference would be too large.
+ * <p>
+ * Reconstruction reads the base and applies the difference, base maps are cached in memory.
+ * Loaded variables are an {@link OverlayEnvVars} over the cached base, so builds sharing a base
+ * only hold their difference, and the decoded strings are interned.
+ * <p>
+ * Builds with identical variables only store a reference to the same base. Bases are not reference counted
+ * on disk, {@link #countReferences(Iterable)} counts the references of the existing builds
+ * and {@link #deleteUnreferenced(Map, long)} deletes the other bases, see {@link EnvInjectVarsStoreCleaner}.
+ * <p>
+ * The store is disabled by default: builds keep writing the self-contained legacy {@value #LEGACY_FILE_NAME} file,
+ * which older versions of the plugin, external tools and copied job directories can read.
+ * Administrators opt in with the {@code org.jenkinsci.plugins.envinject.service.EnvInjectVarsStore.enabled}
+ * system property for new builds, and with {@link EnvInjectVarsConverter} for existing ones.
+ * Variables in the store are loaded in any case.
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class EnvInjectVarsStore {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectVarsStore.class.getName());
+
+    /**
+     * Name of the build file.
+     */
+    public static final String FILE_NAME = "injectedEnvVars.bin";
+
+    /**
+     * Name of the legacy text file of the build, written by the EnvInject API.
+     */
+    public static final String LEGACY_FILE_NAME = "injectedEnvVars.txt";
+
+    /**
+     * Directory of the base maps in {@code JENKINS_HOME}.
+     */
+    public static final String STORE_DIR = "envInject-vars";
+
+    /**
+     * Whether new builds store their variables in the store, instead of the legacy text file.
+     */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Can be changed in the script console")
+    public static boolean ENABLED = SystemProperties.getBoolean(EnvInjectVarsStore.class.getName() + ".enabled");
+
+    private static final int MAGIC = 0x454e5649;
+
+    private static final int VERSION = 1;
+
+    /**
+     * The variables of a build become a new base, when the difference has more entries
+     * than this percentage of the variables.
+     */
+    private static final int MAX_DELTA_PERCENT = SystemProperties.getInteger(
+            EnvInjectVarsStore.class.getName() + ".maxDeltaPercent", 25);
+
+    /**
+     * Decoded base maps by hash, shared by all builds using them.
+     */
+    private static final Cache<String, Map<String, String>> BASES = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(0, SystemProperties.getInteger(EnvInjectVarsStore.class.getName() + ".cacheSize", 256)))
+            .softValues()
+            .build();
+
+    private static final EnvInjectMetrics.Counter CACHE_HITS = EnvInjectMetrics.counter("cache_hits_total", "cache", "vars_base");
+
+    private static final EnvInjectMetrics.Counter CACHE_MISSES = EnvInjectMetrics.counter("cache_misses_total", "cache", "vars_base");
+
+    /**
+     * Held shared by saves and exclusively while unreferenced bases are deleted,
+     * so a base reused by a build being saved cannot be deleted before the build file references it.
+     */
+    private static final ReadWriteLock LOCK = new ReentrantReadWriteLock();
+
+    private static final EnvInjectMetrics.Counter DELETED_FILES = EnvInjectMetrics.counter("vars_store_deleted_files_total");
+
+    @NonNull
+    private final File storeDir;
+
+    public EnvInjectVarsStore(@NonNull File storeDir) {
+        this.storeDir = storeDir;
+    }
+
+    /**
+     * Gets the store in {@code JENKINS_HOME}.
+     * @return Store
+     */
+    @NonNull
+    public static EnvInjectVarsStore get() {
+        return new EnvInjectVarsStore(new File(Jenkins.get().getRootDir(), STORE_DIR));
+    }
+
+    @NonNull
+    public File getStoreDir() {
+        return storeDir;
+    }
+
+    /**
+     * Checks whether the build has stored variables.
+     * @param buildDir Root directory of the build
+     * @return {@code true} if the file exists
+     */
+    public static boolean exists(@NonNull File buildDir) {
+        return new File(buildDir, FILE_NAME).isFile();
+    }
+
+    /**
+     * Stores the variables of a build.
+     * The legacy text file of the build is removed once the variables are stored, so the build is no longer
+     * self-contained. It is only called if the administrator opted in, see {@link #ENABLED}.
+     * The modification time of the base is refreshed, so it is not collected as an old unreferenced base.
+     * @param buildDir Root directory of the build
+     * @param variables Variables
+     * @param referenceBuildDir Root directory of a build, whose base is reused if it is close enough
+     * @throws IOException Write failure
+     */
+    public void save(@NonNull File buildDir, @NonNull Map<String, String> variables,
+            @CheckForNull File referenceBuildDir) throws IOException {
+        LOCK.readLock().lock();
+        try {
+            saveLocked(buildDir, variables, referenceBuildDir);
+        } finally {
+            LOCK.readLock().unlock();
+        }
+    }
+
+    private void saveLocked(@NonNull File buildDir, @NonNull Map<String, String> variables,
+            @CheckForNull File referenceBuildDir) throws IOException {
+        Map<String, String> sorted = new TreeMap<String, String>(variables);
+
+        String baseId = null;
+        Map<String, String> base = null;
+        if (referenceBuildDir != null) {
+            try {
+                baseId = readBaseId(referenceBuildDir);
+                base = baseId == null ? null : readBase(baseId);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot read the base of the variables in " + referenceBuildDir, e);
+            }
+        }
+        Map<String, String> puts = new TreeMap<String, String>();
+        List<String> removals = new ArrayList<String>();
+        if (base != null) {
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                if (!Objects.equals(entry.getValue(), base.get(entry.getKey()))) {
+                    puts.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (String key : base.keySet()) {
+                if (!sorted.containsKey(key)) {
+                    removals.add(key);
+                }
+            }
+        }
+        if (base == null || (puts.size() + removals.size()) * 100L > (long) sorted.size() * MAX_DELTA_PERCENT
+                || !touch(getBaseFile(baseId))) {
+            baseId = writeBase(sorted);
+            puts.clear();
+            removals.clear();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(baseId);
+            writeEntries(out, puts);
+            out.writeInt(removals.size());
+            for (String key : removals) {
+                writeString(out, key);
+            }
+        }
+        writeAtomically(new File(buildDir, FILE_NAME), bytes.toByteArray());
+
+        Files.deleteIfExists(new File(buildDir, LEGACY_FILE_NAME).toPath());
+    }
+
+    /**
+     * Stores the variables of a build in the legacy text file, read by the EnvInject API.
+     * It is used when the store is disabled, and as a fallback for builds, whose variables cannot be stored in the store.
+     * The build file is removed, since it is older than the legacy file.
+     * @param buildDir Root directory of the build
+     * @param variables Variables
+     * @throws IOException Write failure
+     */
+    public static void saveLegacy(@NonNull File buildDir, @NonNull Map<String, String> variables) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(variables).entrySet()) {
+            content.append(entry.getKey()).append('=').append(entry.getValue()).append(System.lineSeparator());
+        }
+        writeAtomically(new File(buildDir, LEGACY_FILE_NAME), content.toString().getBytes(Charset.defaultCharset()));
+
+        Files.deleteIfExists(new File(buildDir, FILE_NAME).toPath());
+    }
+
+    /**
+     * Loads the variables of a build.
+     * @param buildDir Root directory of the build
+     * @return Variables, or {@code null} if the build has no stored variables
+     * @throws IOException Read failure, or the base is missing
+     */
+    @CheckForNull
+    public Map<String, String> load(@NonNull File buildDir) throws IOException {
+        Map<String, String> variables;
+        try (DataInputStream in = openBuildFile(buildDir)) {
+            if (in == null) {
+                return null;
+            }
+            String baseId = in.readUTF();
+            Map<String, String> base = readBase(baseId);
+            if (base == null) {
+                throw new IOException("Missing base " + baseId + " of the variables in " + buildDir);
+            }
+            variables = new OverlayEnvVars(base);
+            readEntries(in, variables);
+            int removals = in.readInt();
+            for (int i = 0; i < removals; i++) {
+                variables.remove(readString(in));
+            }
+        }
+        return variables;
+    }
+
+    /**
+     * Reads the identifier of the base used by a build, without reading the variables.
+     * @param buildDir Root directory of the build
+     * @return Base identifier, or {@code null} if the build has no stored variables
+     * @throws IOException Read failure
+     */
+    @CheckForNull
+    public static String readBaseId(@NonNull File buildDir) throws IOException {
+        try (DataInputStream in = openBuildFile(buildDir)) {
+            return in == null ? null : in.readUTF();
+        }
+    }
+
+    @CheckForNull
+    private static DataInputStream openBuildFile(@NonNull File buildDir) throws IOException {
+        try {
+            return open(new File(buildDir, FILE_NAME));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    @CheckForNull
+    private Map<String, String> readBase(@NonNull String baseId) throws IOException {
+        Map<String, String> base = BASES.getIfPresent(baseId);
+        if (base != null) {
+            CACHE_HITS.increment();
+            return base;
+        }
+        CACHE_MISSES.increment();
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        try (DataInputStream in = open(getBaseFile(baseId))) {
+            readEntries(in, entries);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        base = Collections.unmodifiableMap(entries);
+        BASES.put(baseId, base);
+        return base;
+    }
+
+    @NonNull
+    private String writeBase(@NonNull Map<String, String> sorted) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(content)) {
+            writeEntries(out, sorted);
+        }
+        byte[] raw = content.toByteArray();
+        String baseId = HexFormat.of().formatHex(sha256(raw));
+
+        File file = getBaseFile(baseId);
+        if (!touch(file)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.write(raw);
+            }
+            writeAtomically(file, bytes.toByteArray());
+            LOGGER.log(Level.FINE, "Stored base {0} of {1} variables", new Object[] {baseId, sorted.size()});
+        }
+        BASES.put(baseId, Collections.unmodifiableMap(OverlayEnvVars.internAll(sorted)));
+        return baseId;
+    }
+
+    /**
+     * Deletes the bases, which are not referenced by any of the builds.
+     * Bases and temporary files more recent than the minimum age are kept,
+     * since a build being stored may not reference its new base yet.
+     * @param buildDirs Root directories of all builds
+     * @param minAgeMillis Minimum age of the deleted files, in milliseconds
+     * @return Number of freed bytes
+     * @throws IOException Failure to list the store
+     */
+    public long collectGarbage(@NonNull Iterable<File> buildDirs, long minAgeMillis) throws IOException {
+        return deleteUnreferenced(countReferences(buildDirs), minAgeMillis);
+    }
+
+    /**
+     * Counts the references of the builds to the bases, only the headers of the build files are read.
+     * @param buildDirs Root directories of all builds
+     * @return Number of references by base identifier
+     */
+    @NonNull
+    public static Map<String, Integer> countReferences(@NonNull Iterable<File> buildDirs) {
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        for (File buildDir : buildDirs) {
+            try {
+                String baseId = readBaseId(buildDir);
+                if (baseId != null) {
+                    references.merge(baseId, 1, Integer::sum);
+                }
+            } catch (IOException e) {
+                // Build files are replaced atomically, so the file is corrupted and its base cannot be loaded anyway
+                LOGGER.log(Level.WARNING, "Cannot read the base of the variables in " + buildDir, e);
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Deletes the bases, which are not referenced.
+     * Bases and temporary files more recent than the minimum age are kept,
+     * since a build being stored may not reference its new base yet.
+     * @param references References of all builds, see {@link #countReferences(Iterable)}
+     * @param minAgeMillis Minimum age of the deleted files, in milliseconds
+     * @return Number of freed bytes
+     * @throws IOException Failure to list the store
+     */
+    public long deleteUnreferenced(@NonNull Map<String, Integer> references, long minAgeMillis) throws IOException {
+        // Bases reused since the references were counted are recent
+        LOCK.writeLock().lock();
+        try {
+            return deleteUnreferencedLocked(references, minAgeMillis);
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+    }
+
+    private long deleteUnreferencedLocked(@NonNull Map<String, Integer> references, long minAgeMillis) throws IOException {
+        long maxModified = System.currentTimeMillis() - minAgeMillis;
+        List<File> unreferenced = new ArrayList<File>();
+        File[] prefixDirs = storeDir.listFiles(File::isDirectory);
+        if (prefixDirs != null) {
+            for (File prefixDir : prefixDirs) {
+                File[] files = prefixDir.listFiles(File::isFile);
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    String name = file.getName();
+                    boolean base = name.endsWith(".gz")
+                            && !references.containsKey(name.substring(0, name.length() - ".gz".length()));
+                    if ((base || name.endsWith(".tmp")) && file.lastModified() < maxModified) {
+                        unreferenced.add(file);
+                    }
+                }
+            }
+        }
+
+        long freed = 0;
+        int deleted = 0;
+        for (File file : unreferenced) {
+            long length = file.length();
+            if (Files.deleteIfExists(file.toPath())) {
+                freed += length;
+                deleted++;
+                String name = file.getName();
+                if (name.endsWith(".gz")) {
+                    BASES.invalidate(name.substring(0, name.length() - ".gz".length()));
+                }
+            }
+        }
+        DELETED_FILES.add(deleted);
+        LOGGER.log(Level.FINE, "Deleted {0} unreferenced files of {1} ({2} bytes), {3} bases are referenced",
+                new Object[] {deleted, storeDir, freed, references.size()});
+        return freed;
+    }
+
+    /**
+     * Gets the file of a base.
+     * @param baseId Base identifier
+     * @return File, which may not exist
+     */
+    @NonNull
+    public File getBaseFile(@NonNull String baseId) {
+        return new File(new File(storeDir, baseId.substring(0, 2)), baseId + ".gz");
+    }
+
+    /**
+     * Refreshes the modification time of a referenced base.
+     * @return {@code false} if the base does not exist
+     */
+    private static boolean touch(@NonNull File file) {
+        return file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes all cached base maps.
+     */
+    static void clearCache() {
+        BASES.invalidateAll();
+    }
+
+    @NonNull
+    private static DataInputStream open(@NonNull File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a variables file: " + file);
+            }
+            int version = data.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of " + file);
+            }
+            return data;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static void writeAtomically(@NonNull File file, @NonNull byte[] bytes) throws IOException {
+        File dir = file.getParentFile();
+        Files.createDirectories(dir.toPath());
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                out.write(bytes);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private static void writeEntries(@NonNull DataOutputStream out, @NonNull Map<String, String> entries) throws IOException {
+        out.writeInt(entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static void readEntries(@NonNull DataInputStream in, @NonNull Map<String, String> entries) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = OverlayEnvVars.intern(readString(in));
+            entries.put(key, OverlayEnvVars.intern(readString(in)));
+        }
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @CheckForNull String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @CheckForNull
+    private static String readString(@NonNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @NonNull
+    private static byte[] sha256(@NonNull byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Deletes the bases of {@link EnvInjectVarsStore}, which are no longer referenced by any build.
+ * <p>
+ * References are counted from the build files on disk, which only requires to read their headers, so builds of
+ * jobs, which are not loaded, keep their bases. Item directories are found from {@code $JENKINS_HOME/jobs},
+ * through the {@code jobs}, {@code branches} and {@code modules} directories of folders, multibranch projects
+ * and Maven projects, the build directories of the loaded jobs are added.
+ * The sweep is skipped and retried later if an item directory has no loaded item, e.g. the item failed to load,
+ * if an item is moved or renamed while the references are counted, or if the builds are not stored in the
+ * item directories.
+ * <p>
+ * Bases only become unreferenced when builds are deleted, so the store is only swept after deletions,
+ * and once after the start since builds may have been deleted from the disk in the meantime.
+ * It can be disabled with the {@code org.jenkinsci.plugins.envinject.service.EnvInjectVarsStoreCleaner.enabled}
+ * system property.
+ * @since TODO
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public class EnvInjectVarsStoreCleaner extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(EnvInjectVarsStoreCleaner.class.getName());
+
+    private static final boolean ENABLED = SystemProperties.getBoolean(
+            EnvInjectVarsStoreCleaner.class.getName() + ".enabled", true);
+
+    private static final long RECURRENCE_PERIOD = TimeUnit.HOURS.toMillis(SystemProperties.getLong(
+            EnvInjectVarsStoreCleaner.class.getName() + ".recurrenceHours", 24L));
+
+    /**
+     * Minimum age of the deleted bases, builds being stored may not reference their new base yet.
+     */
+    private static final long MIN_AGE = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Default builds directory of Jenkins, builds of items, which are not loaded, cannot be found with other ones.
+     */
+    private static final String DEFAULT_BUILDS_DIR = "${ITEM_ROOTDIR}/builds";
+
+    /**
+     * Directories of the items, which contain other items.
+     */
+    private static final String[] ITEM_CONTAINERS = {"jobs", "branches", "modules"};
+
+    /**
+     * Whether builds may have been deleted since the last sweep.
+     */
+    private static volatile boolean dirty = true;
+
+    /**
+     * Whether items have been moved or renamed since the references were counted.
+     */
+    private static volatile boolean relocated = false;
+
+    public EnvInjectVarsStoreCleaner() {
+        super("EnvInject variables store cleaner");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(@NonNull TaskListener listener) throws IOException, InterruptedException {
+        if (!ENABLED || !dirty) {
+            return;
+        }
+        EnvInjectVarsStore store = EnvInjectVarsStore.get();
+        if (!store.getStoreDir().isDirectory()) {
+            return;
+        }
+        Jenkins jenkins = Jenkins.get();
+        if (!DEFAULT_BUILDS_DIR.equals(jenkins.getRawBuildsDir())) {
+            listener.getLogger().println("Builds are stored in " + jenkins.getRawBuildsDir()
+                    + ", the builds of unloaded jobs cannot be found, " + store.getStoreDir() + " is not swept");
+            return;
+        }
+        dirty = false;
+        relocated = false;
+
+        Set<File> loadedItemDirs = new HashSet<File>();
+        Set<File> buildDirs = new LinkedHashSet<File>();
+        try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+            for (Item item : jenkins.allItems(Item.class)) {
+                loadedItemDirs.add(item.getRootDir().getAbsoluteFile());
+                if (item instanceof Job) {
+                    addBuildDirs(((Job<?, ?>) item).getBuildDir(), buildDirs);
+                }
+            }
+        }
+        List<File> itemDirs = new ArrayList<File>();
+        findItemDirs(new File(jenkins.getRootDir(), "jobs"), itemDirs);
+        for (File itemDir : itemDirs) {
+            if (!loadedItemDirs.contains(itemDir.getAbsoluteFile())) {
+                // An item, which failed to load, may have builds the walk does not find
+                dirty = true;
+                listener.getLogger().println(itemDir + " is not a loaded item, " + store.getStoreDir() + " is not swept");
+                return;
+            }
+            addBuildDirs(new File(itemDir, "builds"), buildDirs);
+        }
+
+        Map<String, Integer> references = EnvInjectVarsStore.countReferences(buildDirs);
+        if (relocated) {
+            // Builds moved during the count may have been missed
+            dirty = true;
+            listener.getLogger().println("Items were moved while the references were counted, "
+                    + store.getStoreDir() + " is not swept");
+            return;
+        }
+        try {
+            long freed = store.deleteUnreferenced(references, MIN_AGE);
+            listener.getLogger().println("Freed " + freed + " bytes in " + store.getStoreDir());
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Finds the directories of the items on disk, whether they are loaded or not.
+     * @param containerDir Directory containing item directories
+     * @param itemDirs Found item directories
+     */
+    static void findItemDirs(@NonNull File containerDir, @NonNull List<File> itemDirs) {
+        File[] dirs = containerDir.listFiles(File::isDirectory);
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (!new File(dir, "config.xml").isFile()) {
+                continue;
+            }
+            itemDirs.add(dir);
+            for (String container : ITEM_CONTAINERS) {
+                findItemDirs(new File(dir, container), itemDirs);
+            }
+        }
+    }
+
+    static void addBuildDirs(@NonNull File jobBuildDir, @NonNull Collection<File> buildDirs) {
+        // Build numbers only, to skip the symbolic links of older versions of Jenkins
+        File[] dirs = jobBuildDir.listFiles((File dir, String name) -> name.matches("[0-9]+"));
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (dir.isDirectory()) {
+                buildDirs.add(dir.getAbsoluteFile());
+            }
+        }
+    }
+
+    /**
+     * Requests a sweep of the store after the deletion of a build.
+     */
+    @Extension
+    @Restricted(NoExternalUse.class)
+    public static class DeletedRunListener extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onDeleted(@NonNull Run<?, ?> run) {
+            if (!dirty) {
+                LOGGER.log(Level.FINE, "{0} was deleted, the variables store will be swept", run);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Cancels the sweep, whose references are being counted, when an item is moved or renamed.
+     */
+    @Extension
+    @Restricted(NoExternalUse.class)
+    public static class RelocatedItemListener extends ItemListener {
+
+        @Override
+        public void onLocationChanged(@NonNull Item item, @NonNull String oldFullName, @NonNull String newFullName) {
+            relocated = true;
+        }
+    }
+}
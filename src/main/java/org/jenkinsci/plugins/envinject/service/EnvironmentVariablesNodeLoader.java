@@ -1,11 +1,17 @@
 package org.jenkinsci.plugins.envinject.service;
 
 import hudson.EnvVars;
+import hudson.Extension;
 import hudson.FilePath;
+import hudson.XmlFile;
 import hudson.model.Node;
 import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.ComputerListener;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import hudson.slaves.NodeProperty;
+import jenkins.util.SystemProperties;
 import org.jenkinsci.lib.envinject.EnvInjectException;
 import org.jenkinsci.lib.envinject.EnvInjectLogger;
 
@@ -14,9 +20,14 @@ import java.io.Serializable;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import jenkins.model.Jenkins;
+import jenkins.model.Nodes;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 // TODO: Restrict?
 /**
@@ -24,6 +35,27 @@ import jenkins.model.Jenkins;
  */
 public class EnvironmentVariablesNodeLoader implements Serializable {
 
+    /**
+     * Disables the cache of the gathered variables.
+     */
+    private static final boolean DISABLE_CACHE = SystemProperties.getBoolean(
+            EnvironmentVariablesNodeLoader.class.getName() + ".disableCache");
+
+    /**
+     * Incremented on each change of the global or node configuration.
+     */
+    private static final AtomicLong CONFIGURATION_GENERATION = new AtomicLong();
+
+    /**
+     * Gathered variables per node.
+     * A reconfigured agent is a new instance, so its previous entry is not used and will be collected.
+     */
+    private static final Map<Node, CachedEnvVars> CACHE = Collections.synchronizedMap(new WeakHashMap<Node, CachedEnvVars>());
+
+    private static final EnvInjectMetrics.Counter CACHE_HITS = EnvInjectMetrics.counter("cache_hits_total", "cache", "node_variables");
+
+    private static final EnvInjectMetrics.Counter CACHE_MISSES = EnvInjectMetrics.counter("cache_misses_total", "cache", "node_variables");
+
     @Deprecated
     public EnvironmentVariablesNodeLoader() {
     }
@@ -41,6 +73,28 @@ public class EnvironmentVariablesNodeLoader implements Serializable {
     @NonNull
     public static Map<String, String> gatherEnvVarsForNode(@NonNull Run<?, ?> build, 
             @CheckForNull Node buildNode, @NonNull EnvInjectLogger logger) throws EnvInjectException {
+        return gatherEnvVarsForNode(build, buildNode, null, logger);
+    }
+
+    /**
+     * Gathers variables configured for the node.
+     * <p>
+     * The result is cached per node, it is computed again when the node environment snapshot changes
+     * or when the global or node configuration is saved.
+     * @param build Build
+     * @param buildNode Node of the build
+     * @param nodeEnvVars Environment of the node.
+     *                    If {@code null}, it is taken from {@link EnvInjectAgentEnvVarsCache}
+     * @param logger Logger
+     * @return Variables configured for the node, resolved against the node environment variables
+     * @throws EnvInjectException Retrieval failure
+     * @since TODO
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public static Map<String, String> gatherEnvVarsForNode(@NonNull Run<?, ?> build, @CheckForNull Node buildNode,
+            @CheckForNull EnvInjectAgentEnvVarsCache.Snapshot nodeEnvVars, @NonNull EnvInjectLogger logger)
+            throws EnvInjectException {
 
         logger.info("Loading node environment variables.");
 
@@ -53,39 +107,117 @@ public class EnvironmentVariablesNodeLoader implements Serializable {
             return Collections.emptyMap();
         }
 
+        try {
+            //Get env vars for the current node
+            if (nodeEnvVars == null) {
+                nodeEnvVars = EnvInjectAgentEnvVarsCache.get(nodePath);
+            }
+        } catch (IOException ioe) {
+            throw new EnvInjectException(ioe);
+        } catch (InterruptedException ie) {
+            throw new EnvInjectException(ie);
+        }
+
+        if (DISABLE_CACHE) {
+            return loadEnvVarsForNode(buildNode, nodeEnvVars.getEnvVars(), logger);
+        }
+
+        //Read before computing, so a concurrent change is not hidden by the stored value
+        long generation = CONFIGURATION_GENERATION.get();
+        CachedEnvVars cached = CACHE.get(buildNode);
+        if (cached != null && cached.generation == generation && cached.snapshotVersion == nodeEnvVars.getVersion()) {
+            CACHE_HITS.increment();
+            return new HashMap<String, String>(cached.envVars);
+        }
+        CACHE_MISSES.increment();
+
+        Map<String, String> configNodeEnvVars = loadEnvVarsForNode(buildNode, nodeEnvVars.getEnvVars(), logger);
+        CACHE.put(buildNode, new CachedEnvVars(configNodeEnvVars, generation, nodeEnvVars.getVersion()));
+        return configNodeEnvVars;
+    }
+
+    @NonNull
+    private static Map<String, String> loadEnvVarsForNode(@NonNull Node buildNode,
+            @NonNull Map<String, String> nodeEnvVars, @NonNull EnvInjectLogger logger) {
+
         //Default node envVars
         Map<String, String> configNodeEnvVars = new HashMap<String, String>();
 
-        try {
-            //Get env vars for the current node
-            Map<String, String> nodeEnvVars = nodePath.act(new EnvInjectMasterEnvVarsRetriever());
-
-            for (NodeProperty<?> nodeProperty : Jenkins.get().getGlobalNodeProperties()) {
-                if (nodeProperty instanceof EnvironmentVariablesNodeProperty) {
-                    EnvironmentVariablesNodeProperty variablesNodeProperty = (EnvironmentVariablesNodeProperty) nodeProperty;
-                    EnvVars envVars = variablesNodeProperty.getEnvVars();
-                    EnvInjectEnvVars envInjectEnvVars = new EnvInjectEnvVars(logger);
-                    configNodeEnvVars.putAll(envVars);
-                    envInjectEnvVars.resolveVars(configNodeEnvVars, nodeEnvVars);
-                }
+        for (NodeProperty<?> nodeProperty : Jenkins.get().getGlobalNodeProperties()) {
+            if (nodeProperty instanceof EnvironmentVariablesNodeProperty) {
+                EnvironmentVariablesNodeProperty variablesNodeProperty = (EnvironmentVariablesNodeProperty) nodeProperty;
+                EnvVars envVars = variablesNodeProperty.getEnvVars();
+                EnvInjectEnvVars envInjectEnvVars = new EnvInjectEnvVars(logger);
+                configNodeEnvVars.putAll(envVars);
+                envInjectEnvVars.resolveVars(configNodeEnvVars, nodeEnvVars);
             }
+        }
 
-            for (NodeProperty<?> nodeProperty : buildNode.getNodeProperties()) {
-                if (nodeProperty instanceof EnvironmentVariablesNodeProperty) {
-                    EnvironmentVariablesNodeProperty variablesNodeProperty = (EnvironmentVariablesNodeProperty) nodeProperty;
-                    EnvVars envVars = variablesNodeProperty.getEnvVars();
-                    EnvInjectEnvVars envInjectEnvVars = new EnvInjectEnvVars(logger);
-                    configNodeEnvVars.putAll(envVars);
-                    envInjectEnvVars.resolveVars(configNodeEnvVars, nodeEnvVars);
-                }
+        for (NodeProperty<?> nodeProperty : buildNode.getNodeProperties()) {
+            if (nodeProperty instanceof EnvironmentVariablesNodeProperty) {
+                EnvironmentVariablesNodeProperty variablesNodeProperty = (EnvironmentVariablesNodeProperty) nodeProperty;
+                EnvVars envVars = variablesNodeProperty.getEnvVars();
+                EnvInjectEnvVars envInjectEnvVars = new EnvInjectEnvVars(logger);
+                configNodeEnvVars.putAll(envVars);
+                envInjectEnvVars.resolveVars(configNodeEnvVars, nodeEnvVars);
             }
+        }
 
-            return configNodeEnvVars;
+        return configNodeEnvVars;
+    }
 
-        } catch (IOException ioe) {
-            throw new EnvInjectException(ioe);
-        } catch (InterruptedException ie) {
-            throw new EnvInjectException(ie);
+    /**
+     * Invalidates the cached variables of all nodes.
+     */
+    static void configurationChanged() {
+        CONFIGURATION_GENERATION.incrementAndGet();
+    }
+
+    /**
+     * Variables gathered for a node.
+     */
+    private static final class CachedEnvVars {
+
+        @NonNull
+        private final Map<String, String> envVars;
+
+        private final long generation;
+
+        private final long snapshotVersion;
+
+        CachedEnvVars(@NonNull Map<String, String> envVars, long generation, long snapshotVersion) {
+            this.envVars = new HashMap<String, String>(envVars);
+            this.generation = generation;
+            this.snapshotVersion = snapshotVersion;
+        }
+    }
+
+    /**
+     * Invalidates the cache when the global configuration or a node is saved.
+     */
+    @Extension
+    @Restricted(NoExternalUse.class)
+    public static class SaveListener extends SaveableListener {
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            // Agents are persisted through Nodes
+            if (o instanceof Jenkins || o instanceof Nodes || o instanceof Node) {
+                configurationChanged();
+            }
+        }
+    }
+
+    /**
+     * Invalidates the cache when nodes are added, removed or reconfigured.
+     */
+    @Extension
+    @Restricted(NoExternalUse.class)
+    public static class NodeConfigurationListener extends ComputerListener {
+
+        @Override
+        public void onConfigurationChange() {
+            configurationChanged();
         }
     }
 }
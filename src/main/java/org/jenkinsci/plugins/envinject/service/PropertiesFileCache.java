@@ -0,0 +1,175 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jenkins.util.SystemProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * JVM local cache of parsed properties files, mostly used on agents.
+ * <p>
+ * Cached entries are the keys and values before the macro expansion, so they are shared by all builds.
+ * A file is not read again while its size and modification time are unchanged.
+ * As the modification time may have a coarse granularity, a file modified shortly before being cached
+ * is read again and compared by its content hash until the modification is old enough.
+ * <p>
+ * The cache is bounded, least recently used files are evicted first. The size is set by the
+ * {@code org.jenkinsci.plugins.envinject.service.PropertiesFileCache.size} system property, {@code 0} disables the cache.
+ * @since TODO
+ */
+final class PropertiesFileCache {
+
+    private static final int CACHE_SIZE = SystemProperties.getInteger(PropertiesFileCache.class.getName() + ".size", 256);
+
+    /**
+     * Modifications done within this time window may not change the modification time.
+     */
+    static final long RACY_WINDOW_MILLIS = 2000;
+
+    private static final Cache<String, CachedFile> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(0, CACHE_SIZE))
+            .build();
+
+    private static final EnvInjectMetrics.Counter CACHE_HITS = EnvInjectMetrics.counter("cache_hits_total", "cache", "properties_file");
+
+    private static final EnvInjectMetrics.Counter CACHE_MISSES = EnvInjectMetrics.counter("cache_misses_total", "cache", "properties_file");
+
+    private PropertiesFileCache() {
+    }
+
+    /**
+     * Gets the parsed entries of the file, see {@link PropertiesStreamParser#parse(Reader)}.
+     * @param file Properties file
+     * @return Unmodifiable entries before the macro expansion, {@code null} if the file does not exist
+     * @throws IOException Read failure
+     */
+    @CheckForNull
+    static Map<String, String> getEntries(@NonNull File file) throws IOException {
+        long now = System.currentTimeMillis();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (CACHE_SIZE <= 0 || lastModified == 0) {
+            CachedFile loaded = load(file, size, lastModified, now);
+            return loaded == null ? null : loaded.entries;
+        }
+
+        String path = file.getCanonicalPath();
+        CachedFile cached = CACHE.getIfPresent(path);
+        if (cached != null && cached.size == size && cached.lastModified == lastModified) {
+            if (!cached.isRacy()) {
+                CACHE_HITS.increment();
+                return cached.entries;
+            }
+            byte[] digest = digest(file);
+            if (digest != null && Arrays.equals(digest, cached.digest)) {
+                CACHE.put(path, new CachedFile(cached.entries, size, lastModified, now, digest));
+                CACHE_HITS.increment();
+                return cached.entries;
+            }
+        }
+        CACHE_MISSES.increment();
+
+        CachedFile loaded = load(file, size, lastModified, now);
+        if (loaded == null) {
+            CACHE.invalidate(path);
+            return null;
+        }
+        CACHE.put(path, loaded);
+        return loaded.entries;
+    }
+
+    /**
+     * Removes all cached files.
+     */
+    static void clear() {
+        CACHE.invalidateAll();
+    }
+
+    @CheckForNull
+    private static CachedFile load(@NonNull File file, long size, long lastModified, long verifiedAt) throws IOException {
+        MessageDigest messageDigest = newMessageDigest();
+        Map<String, String> entries;
+        // Same charset handling as Util.loadFile(), malformed input is replaced.
+        // Only a missing file is not an error, unreadable files and directories are
+        try (Reader reader = new InputStreamReader(
+                new DigestInputStream(Files.newInputStream(file.toPath()), messageDigest), Charset.defaultCharset())) {
+            entries = PropertiesStreamParser.parse(reader);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return new CachedFile(Collections.unmodifiableMap(entries), size, lastModified, verifiedAt, messageDigest.digest());
+    }
+
+    @CheckForNull
+    private static byte[] digest(@NonNull File file) throws IOException {
+        MessageDigest messageDigest = newMessageDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                messageDigest.update(buffer, 0, read);
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return messageDigest.digest();
+    }
+
+    @NonNull
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static final class CachedFile {
+
+        @NonNull
+        private final Map<String, String> entries;
+
+        private final long size;
+
+        private final long lastModified;
+
+        /**
+         * Time of the last read of the content, taken before reading.
+         */
+        private final long verifiedAt;
+
+        @NonNull
+        private final byte[] digest;
+
+        CachedFile(@NonNull Map<String, String> entries, long size, long lastModified, long verifiedAt, @NonNull byte[] digest) {
+            this.entries = entries;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.verifiedAt = verifiedAt;
+            this.digest = digest;
+        }
+
+        /**
+         * Checks whether the file may have been modified after the read without changing the modification time.
+         */
+        boolean isRacy() {
+            return verifiedAt - lastModified < RACY_WINDOW_MILLIS;
+        }
+    }
+}
@@ -1,15 +1,18 @@
 package org.jenkinsci.plugins.envinject.service;
 
-import hudson.Util;
 import org.jenkinsci.lib.envinject.EnvInjectException;
+import org.jenkinsci.plugins.envinject.util.MacroTemplate;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Properties;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
@@ -37,12 +40,17 @@ public class PropertiesLoader implements Serializable {
             throw new IllegalArgumentException("The properties file object must be exist.");
         }
 
+        Map<String, String> properties;
         try {
-            String fileContent = Util.loadFile(propertiesFile);
-            return getVars(fileContent, currentEnvVars);
+            properties = PropertiesFileCache.getEntries(propertiesFile);
         } catch (IOException ioe) {
             throw new EnvInjectException("Problem occurs on loading content", ioe);
         }
+        if (properties == null) {
+            // Removed in the meantime, Util.loadFile() used to return an empty content
+            return new LinkedHashMap<>();
+        }
+        return expandVars(properties, currentEnvVars);
     }
 
     /**
@@ -55,6 +63,20 @@ public class PropertiesLoader implements Serializable {
      */
     @NonNull
     public Map<String, String> getVarsFromPropertiesContent(@NonNull String content, @NonNull Map<String, String> currentEnvVars) throws EnvInjectException {
+        return expandVars(parsePropertiesContent(content), currentEnvVars);
+    }
+
+    /**
+     * Parses the content without expanding macros, so the result can be reused with {@link #expandVars(Map, Map)}.
+     *
+     * @param content the properties content to parse
+     * @return unmodifiable keys and values before the macro expansion
+     * @throws EnvInjectException Issue with content loading
+     * @since TODO
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public Map<String, String> parsePropertiesContent(@NonNull String content) throws EnvInjectException {
         if (content == null) {
             throw new NullPointerException("A properties content must be set.");
         }
@@ -62,30 +84,28 @@ public class PropertiesLoader implements Serializable {
             throw new IllegalArgumentException("A properties content must be not empty.");
         }
 
-        return getVars(content, currentEnvVars);
-    }
-
-    @NonNull
-    private Map<String, String> getVars(@NonNull String content, @NonNull Map<String, String> currentEnvVars) 
-            throws EnvInjectException {
-
-        // Replace single backslashes with double ones so they won't be removed by Property.load()
-        String escapedContent = content;
-        escapedContent = escapedContent.replaceAll("(?<![\\\\])\\\\(?![n:*?\"<>\\\\/])(?![\\\\])(?![\n])", "\\\\\\\\");
-        //Escape windows network shares initial double backslash i.e \\Network\Share
-        escapedContent = escapedContent.replaceAll("(?m)^([^=]+=)(\\\\\\\\)(?![:*?\"<>\\\\/])", "$1\\\\\\\\\\\\\\\\");
-
-        Map<String, String> result = new LinkedHashMap<>();
-        
-        Properties properties = new Properties();
-
-        try (StringReader stringReader = new StringReader(escapedContent)) {
-            properties.load(stringReader);
+        Map<String, String> properties;
+        try (Reader reader = new StringReader(content)) {
+            properties = PropertiesStreamParser.parse(reader);
         } catch (IOException ioe) {
             throw new EnvInjectException("Problem occurs on loading content", ioe);
         }
+        return Collections.unmodifiableMap(properties);
+    }
 
-        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+    /**
+     * Expands macros in parsed keys and values and trims them.
+     *
+     * @param properties     keys and values returned by {@link #parsePropertiesContent(String)}
+     * @param currentEnvVars the current environment variables to resolve against
+     * @return the environment variables
+     * @since TODO
+     */
+    @NonNull
+    @Restricted(NoExternalUse.class)
+    public Map<String, String> expandVars(@NonNull Map<String, String> properties, @NonNull Map<String, String> currentEnvVars) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
             result.put(processElement(entry.getKey(), currentEnvVars), processElement(entry.getValue(), currentEnvVars));
         }
         return result;
@@ -93,7 +113,7 @@ public class PropertiesLoader implements Serializable {
 
     @CheckForNull
     private String processElement(@CheckForNull Object prop, @NonNull Map<String, String> currentEnvVars) {
-        String macroProcessedElement = Util.replaceMacro(String.valueOf(prop), currentEnvVars);
+        String macroProcessedElement = MacroTemplate.expand(String.valueOf(prop), currentEnvVars);
         if (macroProcessedElement == null) {
             return null;
         }
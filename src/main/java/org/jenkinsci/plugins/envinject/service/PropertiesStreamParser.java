@@ -0,0 +1,495 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Single pass parser of properties content.
+ * <p>
+ * It gives the same entries as the former approach of {@link PropertiesLoader}, which escaped the whole content
+ * with two regular expressions and then loaded it with {@link Properties#load(Reader)}:
+ * <ol>
+ *     <li>A single backslash, which is not followed by one of {@code n:*?"<>\/} or a line feed, is doubled,
+ *         so it is not removed by {@link Properties#load(Reader)} (e.g. Windows paths).</li>
+ *     <li>A double backslash right after the first {@code =} of a line, which is not followed by
+ *         one of {@code :*?"<>\/}, is doubled again (Windows network shares, e.g. {@code \\server\share}).</li>
+ * </ol>
+ * Both rules are applied while reading characters, the line and escape handling is the one of
+ * {@link Properties#load(Reader)}. Entries are returned in the order of their first definition.
+ * <p>
+ * The former implementation is kept in tests to verify the parity.
+ * @since TODO
+ */
+final class PropertiesStreamParser {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private PropertiesStreamParser() {
+    }
+
+    /**
+     * Parses properties.
+     * @param reader Properties content
+     * @return Entries in the order of their first definition, the last definition wins
+     * @throws IOException Read failure
+     * @throws IllegalArgumentException Malformed {@code \}{@code uxxxx} escape sequence, like {@link Properties#load(Reader)}
+     */
+    @NonNull
+    static Map<String, String> parse(@NonNull Reader reader) throws IOException {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        LineReader lineReader = new LineReader(new EscapingReader(reader));
+        StringBuilder outBuffer = new StringBuilder();
+        int limit;
+        while ((limit = lineReader.readLine()) >= 0) {
+            // Same as Properties#load0()
+            char[] lineBuf = lineReader.lineBuf;
+            int keyLen = 0;
+            int valueStart = limit;
+            boolean hasSep = false;
+            boolean precedingBackslash = false;
+            while (keyLen < limit) {
+                char c = lineBuf[keyLen];
+                if ((c == '=' || c == ':') && !precedingBackslash) {
+                    valueStart = keyLen + 1;
+                    hasSep = true;
+                    break;
+                } else if ((c == ' ' || c == '\t' || c == '\f') && !precedingBackslash) {
+                    valueStart = keyLen + 1;
+                    break;
+                }
+                if (c == '\\') {
+                    precedingBackslash = !precedingBackslash;
+                } else {
+                    precedingBackslash = false;
+                }
+                keyLen++;
+            }
+            while (valueStart < limit) {
+                char c = lineBuf[valueStart];
+                if (c != ' ' && c != '\t' && c != '\f') {
+                    if (!hasSep && (c == '=' || c == ':')) {
+                        hasSep = true;
+                    } else {
+                        break;
+                    }
+                }
+                valueStart++;
+            }
+            String key = loadConvert(lineBuf, 0, keyLen, outBuffer);
+            String value = loadConvert(lineBuf, valueStart, limit - valueStart, outBuffer);
+            result.put(key, value);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@code Properties#loadConvert()}.
+     */
+    @NonNull
+    private static String loadConvert(@NonNull char[] in, int off, int len, @NonNull StringBuilder out) {
+        char aChar;
+        int end = off + len;
+        int start = off;
+        while (off < end) {
+            aChar = in[off++];
+            if (aChar == '\\') {
+                break;
+            }
+        }
+        if (off == end && (len == 0 || in[end - 1] != '\\')) {
+            // No backslash
+            return new String(in, start, len);
+        }
+
+        out.setLength(0);
+        off--;
+        out.append(in, start, off - start);
+
+        while (off < end) {
+            aChar = in[off++];
+            if (aChar == '\\') {
+                // The line reader excludes unescaped backslashes at the end of the line
+                aChar = in[off++];
+                if (aChar == 'u') {
+                    if (off > end - 4) {
+                        throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+                    }
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        aChar = in[off++];
+                        if (aChar >= '0' && aChar <= '9') {
+                            value = (value << 4) + aChar - '0';
+                        } else if (aChar >= 'a' && aChar <= 'f') {
+                            value = (value << 4) + 10 + aChar - 'a';
+                        } else if (aChar >= 'A' && aChar <= 'F') {
+                            value = (value << 4) + 10 + aChar - 'A';
+                        } else {
+                            throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+                        }
+                    }
+                    out.append((char) value);
+                } else {
+                    if (aChar == 't') {
+                        aChar = '\t';
+                    } else if (aChar == 'r') {
+                        aChar = '\r';
+                    } else if (aChar == 'n') {
+                        aChar = '\n';
+                    } else if (aChar == 'f') {
+                        aChar = '\f';
+                    }
+                    out.append(aChar);
+                }
+            } else {
+                out.append(aChar);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Reads logical lines, same as {@code Properties.LineReader} for readers.
+     */
+    private static final class LineReader {
+
+        @NonNull
+        private final Reader reader;
+
+        @NonNull
+        private final char[] inCharBuf = new char[BUFFER_SIZE];
+
+        @NonNull
+        char[] lineBuf = new char[1024];
+
+        private int inLimit = 0;
+
+        private int inOff = 0;
+
+        LineReader(@NonNull Reader reader) {
+            this.reader = reader;
+        }
+
+        int readLine() throws IOException {
+            int len = 0;
+            int off = inOff;
+            int limit = inLimit;
+
+            boolean skipWhiteSpace = true;
+            boolean appendedLineBegin = false;
+            boolean precedingBackslash = false;
+            char[] charBuf = inCharBuf;
+            char c;
+
+            while (true) {
+                if (off >= limit) {
+                    inLimit = limit = reader.read(charBuf);
+                    if (limit <= 0) {
+                        if (len == 0) {
+                            return -1;
+                        }
+                        return precedingBackslash ? len - 1 : len;
+                    }
+                    off = 0;
+                }
+
+                c = charBuf[off++];
+
+                if (skipWhiteSpace) {
+                    if (c == ' ' || c == '\t' || c == '\f') {
+                        continue;
+                    }
+                    if (!appendedLineBegin && (c == '\r' || c == '\n')) {
+                        continue;
+                    }
+                    skipWhiteSpace = false;
+                    appendedLineBegin = false;
+                }
+                if (len == 0) {
+                    // Still on a new logical line
+                    if (c == '#' || c == '!') {
+                        // Comment, consume the rest of the line
+                        commentLoop:
+                        while (true) {
+                            while (off < limit) {
+                                c = charBuf[off++];
+                                if (c == '\r' || c == '\n') {
+                                    break commentLoop;
+                                }
+                            }
+                            if (off == limit) {
+                                inLimit = limit = reader.read(charBuf);
+                                if (limit <= 0) {
+                                    return -1;
+                                }
+                                off = 0;
+                            }
+                        }
+                        skipWhiteSpace = true;
+                        continue;
+                    }
+                }
+
+                if (c != '\n' && c != '\r') {
+                    lineBuf[len++] = c;
+                    if (len == lineBuf.length) {
+                        char[] newLineBuf = new char[len * 2];
+                        System.arraycopy(lineBuf, 0, newLineBuf, 0, len);
+                        lineBuf = newLineBuf;
+                    }
+                    // Flip the preceding backslash flag
+                    precedingBackslash = c == '\\' ? !precedingBackslash : false;
+                } else {
+                    // Reached EOL
+                    if (len == 0) {
+                        skipWhiteSpace = true;
+                        continue;
+                    }
+                    if (off >= limit) {
+                        inLimit = limit = reader.read(charBuf);
+                        off = 0;
+                        if (limit <= 0) {
+                            return precedingBackslash ? len - 1 : len;
+                        }
+                    }
+                    if (precedingBackslash) {
+                        // Backslash at EOL is not part of the line
+                        len -= 1;
+                        // Skip leading whitespace characters in the following line
+                        skipWhiteSpace = true;
+                        appendedLineBegin = true;
+                        precedingBackslash = false;
+                        // Take care not to include any subsequent \n
+                        if (c == '\r') {
+                            if (charBuf[off] == '\n') {
+                                off++;
+                            }
+                        }
+                    } else {
+                        inOff = off;
+                        return len;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the escaping rules of the former regular expressions while reading.
+     */
+    private static final class EscapingReader extends Reader {
+
+        private static final int EOF = -1;
+
+        private static final int NONE = -2;
+
+        @NonNull
+        private final Reader in;
+
+        @NonNull
+        private final char[] inBuf = new char[BUFFER_SIZE];
+
+        private int inOff = 0;
+
+        private int inLimit = 0;
+
+        // Backslash doubling
+
+        /**
+         * Previous character of the original content.
+         */
+        private int previous = EOF;
+
+        /**
+         * Second backslash of a doubled backslash.
+         */
+        private boolean doubledBackslash = false;
+
+        // Network share escaping, works on the content with doubled backslashes
+
+        /**
+         * Characters of the content with doubled backslashes, which have been read ahead.
+         */
+        @NonNull
+        private final int[] lookahead = new int[3];
+
+        private int lookaheadSize = 0;
+
+        /**
+         * Remaining backslashes of an escaped network share.
+         */
+        private int pendingBackslashes = 0;
+
+        /**
+         * Previous character of the content with doubled backslashes, {@link #NONE} at the beginning.
+         */
+        private int previousEscaped = NONE;
+
+        /**
+         * A line has started after the last {@code =}.
+         */
+        private boolean lineStarted = false;
+
+        /**
+         * A line has started after the last {@code =} and contains at least one character.
+         */
+        private boolean lineStartedWithKey = false;
+
+        EscapingReader(@NonNull Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(@NonNull char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int count = 0;
+            while (count < len) {
+                int c = next();
+                if (c == EOF) {
+                    return count == 0 ? -1 : count;
+                }
+                cbuf[off + count++] = (char) c;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /**
+         * Next character with escaped network shares.
+         * Same as {@code replaceAll("(?m)^([^=]+=)(\\\\\\\\)(?![:*?\"<>\\\\/])", "$1\\\\\\\\\\\\\\\\")}
+         * applied to the content with doubled backslashes.
+         */
+        private int next() throws IOException {
+            if (pendingBackslashes > 0) {
+                pendingBackslashes--;
+                return '\\';
+            }
+            int c = takeEscaped();
+            if (c == EOF) {
+                return EOF;
+            }
+
+            if (isLineStart(previousEscaped, c)) {
+                lineStarted = true;
+            }
+            previousEscaped = c;
+            if (c != '=') {
+                if (lineStarted) {
+                    lineStartedWithKey = true;
+                }
+                return c;
+            }
+
+            boolean firstSeparatorOfLine = lineStartedWithKey;
+            lineStarted = false;
+            lineStartedWithKey = false;
+            if (firstSeparatorOfLine && peekEscaped(0) == '\\' && peekEscaped(1) == '\\'
+                    && !isNetworkShareFollower(peekEscaped(2))) {
+                previousEscaped = takeEscaped();
+                previousEscaped = takeEscaped();
+                pendingBackslashes = 4;
+            }
+            return c;
+        }
+
+        private static boolean isLineStart(int previous, int c) {
+            if (previous == NONE) {
+                return true;
+            }
+            // Same line terminators as Pattern.MULTILINE, \r\n is a single one
+            return previous == '\n' || previous == '\u0085' || previous == '\u2028' || previous == '\u2029'
+                    || (previous == '\r' && c != '\n');
+        }
+
+        private static boolean isNetworkShareFollower(int c) {
+            switch (c) {
+                case ':': case '*': case '?': case '"': case '<': case '>': case '\\': case '/':
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private int takeEscaped() throws IOException {
+            if (lookaheadSize == 0) {
+                return nextEscaped();
+            }
+            int c = lookahead[0];
+            lookaheadSize--;
+            System.arraycopy(lookahead, 1, lookahead, 0, lookaheadSize);
+            return c;
+        }
+
+        private int peekEscaped(int index) throws IOException {
+            while (lookaheadSize <= index) {
+                lookahead[lookaheadSize++] = nextEscaped();
+            }
+            return lookahead[index];
+        }
+
+        /**
+         * Next character with doubled backslashes.
+         * Same as {@code replaceAll("(?<![\\\\])\\\\(?![n:*?\"<>\\\\/])(?![\\\\])(?![\n])", "\\\\\\\\")}.
+         */
+        private int nextEscaped() throws IOException {
+            if (doubledBackslash) {
+                doubledBackslash = false;
+                return '\\';
+            }
+            int c = readRaw();
+            if (c == EOF) {
+                return EOF;
+            }
+            int before = previous;
+            previous = c;
+            if (c == '\\' && before != '\\' && !isBackslashFollower(peekRaw())) {
+                doubledBackslash = true;
+            }
+            return c;
+        }
+
+        private static boolean isBackslashFollower(int c) {
+            switch (c) {
+                case 'n': case ':': case '*': case '?': case '"': case '<': case '>': case '\\': case '/': case '\n':
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private int readRaw() throws IOException {
+            if (!fill()) {
+                return EOF;
+            }
+            return inBuf[inOff++];
+        }
+
+        private int peekRaw() throws IOException {
+            if (!fill()) {
+                return EOF;
+            }
+            return inBuf[inOff];
+        }
+
+        private boolean fill() throws IOException {
+            while (inOff >= inLimit) {
+                inLimit = in.read(inBuf, 0, inBuf.length);
+                inOff = 0;
+                if (inLimit < 0) {
+                    inLimit = 0;
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.jenkinsci.plugins.envinject.util;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Immutable view of environment variables built from a stack of layers.
+ * <p>
+ * Adding a layer with {@link #with(Map)} shares all layers below it, so inherited variables are not copied.
+ * Lookups walk the layers from the top, the topmost layer defining a variable wins.
+ * The iteration order is the one of a {@link LinkedHashMap} filled layer by layer from the bottom.
+ * Iterating, computing the size and comparing the view require a flat copy, which is computed once and then kept.
+ * <p>
+ * Layers are not copied, the maps passed to {@link #of(Map)} and {@link #with(Map)} must not be modified afterwards.
+ * The view is serialized as a {@link LinkedHashMap}.
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class LayeredEnvVars extends AbstractMap<String, String> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Maximum number of layers, the stack is flattened when it grows deeper
+     * so lookups stay cheap.
+     */
+    static final int MAX_DEPTH = 8;
+
+    @SuppressFBWarnings(value = "DM_STRING_CTOR", justification = "Marker compared by identity")
+    private static final String OVERRIDDEN = new String("");
+
+    private static final LayeredEnvVars EMPTY = new LayeredEnvVars(null, Collections.<String, String>emptyMap());
+
+    @CheckForNull
+    private final transient LayeredEnvVars parent;
+
+    @NonNull
+    private final transient Map<String, String> layer;
+
+    private final transient int depth;
+
+    @CheckForNull
+    private transient volatile Map<String, String> flat;
+
+    private LayeredEnvVars(@CheckForNull LayeredEnvVars parent, @NonNull Map<String, String> layer) {
+        this.parent = parent;
+        this.layer = layer;
+        this.depth = parent == null ? 1 : parent.depth + 1;
+    }
+
+    /**
+     * Gets an empty view.
+     * @return Empty view
+     */
+    @NonNull
+    public static LayeredEnvVars empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates a view of the variables.
+     * @param variables Base layer. It is not copied and must not be modified afterwards
+     * @return View of the variables
+     */
+    @NonNull
+    public static LayeredEnvVars of(@NonNull Map<String, String> variables) {
+        if (variables instanceof LayeredEnvVars) {
+            return (LayeredEnvVars) variables;
+        }
+        return EMPTY.with(variables);
+    }
+
+    /**
+     * Creates a view with an additional layer on top of this one.
+     * @param overlay Variables overriding the ones of this view. The map is not copied and must not be modified afterwards
+     * @return New view, or this view if the overlay is empty
+     */
+    @NonNull
+    public LayeredEnvVars with(@NonNull Map<String, String> overlay) {
+        if (overlay.isEmpty()) {
+            return this;
+        }
+        if (overlay instanceof LayeredEnvVars) {
+            overlay = ((LayeredEnvVars) overlay).getFlat();
+        }
+        if (layer.isEmpty() && parent == null) {
+            return new LayeredEnvVars(null, overlay);
+        }
+        if (depth >= MAX_DEPTH) {
+            Map<String, String> flattened = materialize();
+            flattened.putAll(overlay);
+            return new LayeredEnvVars(null, flattened);
+        }
+        return new LayeredEnvVars(this, overlay);
+    }
+
+    /**
+     * Creates a mutable overlay on top of this view.
+     * It is intended for APIs, which add variables to a provided map and may read variables from it.
+     * @return New overlay
+     */
+    @NonNull
+    public Overlay newOverlay() {
+        return new Overlay(this);
+    }
+
+    @Override
+    public String get(Object key) {
+        for (LayeredEnvVars current = this; current != null; current = current.parent) {
+            String value = current.layer.get(key);
+            if (value != null || current.layer.containsKey(key)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        for (LayeredEnvVars current = this; current != null; current = current.parent) {
+            if (current.layer.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (LayeredEnvVars current = this; current != null; current = current.parent) {
+            if (!current.layer.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return getFlat().size();
+    }
+
+    @Override
+    @NonNull
+    public Set<Entry<String, String>> entrySet() {
+        return getFlat().entrySet();
+    }
+
+    /**
+     * Copies the visible variables to a new map.
+     * @return Mutable map owned by the caller
+     */
+    @NonNull
+    public LinkedHashMap<String, String> materialize() {
+        LinkedHashMap<String, String> result = new LinkedHashMap<String, String>();
+        copyTo(result);
+        return result;
+    }
+
+    private void copyTo(@NonNull Map<String, String> result) {
+        Map<String, String> cached = flat;
+        if (cached != null) {
+            result.putAll(cached);
+            return;
+        }
+        if (parent != null) {
+            parent.copyTo(result);
+        }
+        result.putAll(layer);
+    }
+
+    /**
+     * Selects visible variables by value without copying the whole view.
+     * @param valueFilter Filter of values
+     * @return Mutable map of matching variables in iteration order, owned by the caller
+     */
+    @NonNull
+    public LinkedHashMap<String, String> select(@NonNull Predicate<String> valueFilter) {
+        LinkedHashMap<String, String> result = new LinkedHashMap<String, String>();
+        Map<String, String> cached = flat;
+        if (cached != null) {
+            for (Entry<String, String> entry : cached.entrySet()) {
+                if (valueFilter.test(entry.getValue())) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return result;
+        }
+        select(valueFilter, result);
+        result.values().removeIf(value -> value == OVERRIDDEN);
+        return result;
+    }
+
+    private void select(@NonNull Predicate<String> valueFilter, @NonNull Map<String, String> result) {
+        if (parent != null) {
+            parent.select(valueFilter, result);
+        }
+        for (Entry<String, String> entry : layer.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (valueFilter.test(value)) {
+                result.put(key, value);
+            } else if (result.containsKey(key)) {
+                // Overridden by a value, which does not match. Keep the position until all layers are visited
+                result.put(key, OVERRIDDEN);
+            }
+        }
+    }
+
+    @NonNull
+    private Map<String, String> getFlat() {
+        Map<String, String> cached = flat;
+        if (cached == null) {
+            cached = parent == null ? Collections.unmodifiableMap(layer) : Collections.unmodifiableMap(materialize());
+            flat = cached;
+        }
+        return cached;
+    }
+
+    private Object writeReplace() {
+        return materialize();
+    }
+
+    /**
+     * Mutable layer on top of a {@link LayeredEnvVars}.
+     * Reads fall back to the underlying view, writes go to the overlay. Removal is not supported.
+     */
+    @Restricted(NoExternalUse.class)
+    public static final class Overlay extends AbstractMap<String, String> {
+
+        @NonNull
+        private final LayeredEnvVars base;
+
+        @NonNull
+        private final Map<String, String> layer = new LinkedHashMap<String, String>();
+
+        private Overlay(@NonNull LayeredEnvVars base) {
+            this.base = base;
+        }
+
+        @Override
+        public String get(Object key) {
+            String value = layer.get(key);
+            if (value != null || layer.containsKey(key)) {
+                return value;
+            }
+            return base.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return layer.containsKey(key) || base.containsKey(key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            String previous = get(key);
+            layer.put(key, value);
+            return previous;
+        }
+
+        @Override
+        @NonNull
+        public Set<Entry<String, String>> entrySet() {
+            return toView().entrySet();
+        }
+
+        /**
+         * Creates an immutable view of the current content, further changes of the overlay are not visible in it.
+         * @return Immutable view
+         */
+        @NonNull
+        public LayeredEnvVars toView() {
+            return base.with(new LinkedHashMap<String, String>(layer));
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package org.jenkinsci.plugins.envinject.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import hudson.Util;
+import hudson.util.VariableResolver;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Value tokenized once into literal and variable reference segments.
+ * <p>
+ * Expansion gives the same result as {@link Util#replaceMacro(String, VariableResolver)}:
+ * {@code $VAR} and {@code ${VAR}} are replaced by the resolved value, unresolved references are kept as is,
+ * {@code $$} becomes {@code $} and substituted values are not scanned again.
+ * Compiled templates are cached per distinct value, see {@link #compile(String)}.
+ * The cache is bounded by the total length of the values, and long values are not cached,
+ * since they are rarely shared and may contain secrets.
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class MacroTemplate {
+
+    /**
+     * Maximum total length of the cached values, in characters.
+     * A template holds its value and the literal segments, so about twice this size.
+     */
+    private static final long CACHE_WEIGHT = SystemProperties.getLong(MacroTemplate.class.getName() + ".cacheWeight", 1024L * 1024);
+
+    /**
+     * Values longer than this are compiled on each use.
+     */
+    static final int MAX_CACHED_LENGTH = SystemProperties.getInteger(MacroTemplate.class.getName() + ".maxCachedLength", 4096);
+
+    private static final Cache<String, MacroTemplate> CACHE = CacheBuilder.newBuilder()
+            .maximumWeight(Math.max(0, CACHE_WEIGHT))
+            .weigher((String value, MacroTemplate template) -> value.length())
+            .build();
+
+    private static final EnvInjectMetrics.Counter CACHE_HITS = EnvInjectMetrics.counter("cache_hits_total", "cache", "macro_template");
+
+    private static final EnvInjectMetrics.Counter CACHE_MISSES = EnvInjectMetrics.counter("cache_misses_total", "cache", "macro_template");
+
+    private static final String[] NO_NAMES = new String[0];
+
+    @NonNull
+    private final String source;
+
+    /**
+     * Literal segments, {@code literals.length == names.length + 1}.
+     * Escaped dollar signs are already unescaped.
+     */
+    @NonNull
+    private final String[] literals;
+
+    /**
+     * Referenced variable names, in order of appearance.
+     */
+    @NonNull
+    private final String[] names;
+
+    /**
+     * Original text of each reference, used when the reference cannot be resolved.
+     */
+    @NonNull
+    private final String[] references;
+
+    private final int literalsLength;
+
+    /**
+     * Whether the value contains escaped dollar signs.
+     */
+    private final boolean escapes;
+
+    private MacroTemplate(@NonNull String source, @NonNull String[] literals,
+            @NonNull String[] names, @NonNull String[] references, boolean escapes) {
+        this.source = source;
+        this.literals = literals;
+        this.names = names;
+        this.references = references;
+        this.escapes = escapes;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalsLength = length;
+    }
+
+    /**
+     * Gets the compiled template of the value, from the cache if possible.
+     * Values longer than {@link #MAX_CACHED_LENGTH} are never cached.
+     * @param value Value to be compiled
+     * @return Compiled template
+     */
+    @NonNull
+    public static MacroTemplate compile(@NonNull String value) {
+        if (value.length() > MAX_CACHED_LENGTH) {
+            CACHE_MISSES.increment();
+            return parse(value);
+        }
+        MacroTemplate template = CACHE.getIfPresent(value);
+        if (template == null) {
+            CACHE_MISSES.increment();
+            template = parse(value);
+            CACHE.put(value, template);
+        } else {
+            CACHE_HITS.increment();
+        }
+        return template;
+    }
+
+    /**
+     * Drop-in replacement of {@link Util#replaceMacro(String, Map)}.
+     * Values without dollar signs are returned as is, without compiling a template.
+     * @param value Value to be expanded
+     * @param variables Variables to resolve against. If {@code null}, the value is returned as is
+     * @return Expanded value
+     */
+    @CheckForNull
+    public static String expand(@CheckForNull String value, @CheckForNull Map<String, String> variables) {
+        if (value == null || variables == null || value.indexOf('$') < 0) {
+            return value;
+        }
+        return compile(value).expand(variables);
+    }
+
+    /**
+     * Drop-in replacement of {@link Util#replaceMacro(String, VariableResolver)}.
+     * Values without dollar signs are returned as is, without compiling a template.
+     * @param value Value to be expanded
+     * @param resolver Resolver of variables
+     * @return Expanded value
+     */
+    @CheckForNull
+    public static String expand(@CheckForNull String value, @NonNull VariableResolver<String> resolver) {
+        if (value == null || value.indexOf('$') < 0) {
+            return value;
+        }
+        return compile(value).expand(resolver);
+    }
+
+    @NonNull
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Checks whether the value references variables.
+     * @return {@code true} if the value contains at least one {@code $VAR} or {@code ${VAR}} reference
+     */
+    public boolean hasReferences() {
+        return names.length != 0;
+    }
+
+    /**
+     * Checks whether the value contains {@code $$}, so the expanded value may contain new references.
+     * @return {@code true} if the value contains at least one escaped dollar sign
+     */
+    public boolean hasEscapes() {
+        return escapes;
+    }
+
+    /**
+     * Gets referenced variable names in order of appearance, with duplicates.
+     * @return Referenced variable names
+     */
+    @NonNull
+    public List<String> getReferencedNames() {
+        return names.length == 0 ? Collections.<String>emptyList() : Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * Expands the template against variables.
+     * @param variables Variables to resolve against
+     * @return Expanded value
+     */
+    @NonNull
+    public String expand(@NonNull Map<String, String> variables) {
+        if (names.length == 0) {
+            return literals[0];
+        }
+        StringBuilder builder = new StringBuilder(literalsLength + 16 * names.length);
+        for (int i = 0; i < names.length; i++) {
+            String value = variables.get(names[i]);
+            builder.append(literals[i]).append(value != null ? value : references[i]);
+        }
+        return builder.append(literals[names.length]).toString();
+    }
+
+    /**
+     * Expands the template against a resolver.
+     * @param resolver Resolver of variables
+     * @return Expanded value
+     */
+    @NonNull
+    public String expand(@NonNull VariableResolver<String> resolver) {
+        if (names.length == 0) {
+            return literals[0];
+        }
+        StringBuilder builder = new StringBuilder(literalsLength + 16 * names.length);
+        for (int i = 0; i < names.length; i++) {
+            String value = resolver.resolve(names[i]);
+            builder.append(literals[i]).append(value != null ? value : references[i]);
+        }
+        return builder.append(literals[names.length]).toString();
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * Tokenizes the value following the syntax of {@link Util#replaceMacro(String, VariableResolver)}.
+     */
+    @NonNull
+    static MacroTemplate parse(@NonNull String value) {
+        final int length = value.length();
+        int i = value.indexOf('$');
+        if (i < 0) {
+            return new MacroTemplate(value, new String[] {value}, NO_NAMES, NO_NAMES, false);
+        }
+
+        final List<String> literals = new ArrayList<String>(4);
+        final List<String> names = new ArrayList<String>(4);
+        final List<String> references = new ArrayList<String>(4);
+        final StringBuilder literal = new StringBuilder(length);
+        int literalStart = 0;
+        boolean escapes = false;
+        while (i >= 0 && i + 1 < length) {
+            final char next = value.charAt(i + 1);
+            int end = -1;
+            String name = null;
+            if (next == '$') {
+                end = i + 2;
+            } else if (next == '{') {
+                int j = i + 2;
+                while (j < length && isNameChar(value.charAt(j), true)) {
+                    j++;
+                }
+                if (j > i + 2 && j < length && value.charAt(j) == '}') {
+                    name = value.substring(i + 2, j);
+                    end = j + 1;
+                }
+            } else if (isNameChar(next, false)) {
+                int j = i + 2;
+                while (j < length && isNameChar(value.charAt(j), false)) {
+                    j++;
+                }
+                name = value.substring(i + 1, j);
+                end = j;
+            }
+
+            if (end < 0) {
+                // Not a reference, the dollar sign stays in the literal
+                i = value.indexOf('$', i + 1);
+                continue;
+            }
+            literal.append(value, literalStart, i);
+            if (name == null) {
+                // Escaped dollar sign
+                literal.append('$');
+                escapes = true;
+            } else {
+                literals.add(literal.toString());
+                literal.setLength(0);
+                names.add(name);
+                references.add(value.substring(i, end));
+            }
+            literalStart = end;
+            i = value.indexOf('$', end);
+        }
+        literal.append(value, literalStart, length);
+        literals.add(literal.toString());
+
+        return new MacroTemplate(value,
+                literals.toArray(new String[0]),
+                names.isEmpty() ? NO_NAMES : names.toArray(new String[0]),
+                references.isEmpty() ? NO_NAMES : references.toArray(new String[0]),
+                escapes);
+    }
+
+    private static boolean isNameChar(char c, boolean inBraces) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_'
+                || (inBraces && c == '.');
+    }
+}
@@ -0,0 +1,484 @@
+package org.jenkinsci.plugins.envinject.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Aho-Corasick automaton, which masks encoded passwords in bytes without decoding them.
+ * <p>
+ * Matches are leftmost-longest: among overlapping passwords, the match starting first wins,
+ * and among matches starting at the same position, the longest one wins. The text of a match is
+ * replaced by the mask and the search continues after the match.
+ * <p>
+ * Byte matches are character matches only if no password can match in the middle of a character,
+ * see {@link #supports(Charset)}.
+ * <p>
+ * The transitions are stored in a dense table, the automaton is only compiled for passwords, whose table
+ * is smaller than the {@code org.jenkinsci.plugins.envinject.util.MaskingAutomaton.maxTableSize} system property,
+ * see {@link #fits(Collection, Charset)}.
+ * <p>
+ * Automata are immutable, builds with the same passwords share one through {@link #get(Collection, Charset, String)}.
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class MaskingAutomaton {
+
+    /**
+     * Maximum number of entries of the transition table, 4 MiB by default.
+     */
+    private static final int MAX_TABLE_SIZE = SystemProperties.getInteger(MaskingAutomaton.class.getName() + ".maxTableSize", 1 << 20);
+
+    /**
+     * Maximum size of the cached automata in bytes.
+     */
+    private static final long CACHE_WEIGHT = SystemProperties.getLong(MaskingAutomaton.class.getName() + ".cacheWeight", 32L << 20);
+
+    /**
+     * Automata by fingerprint of their passwords, weighed by their size.
+     * Values are weak, the passwords are released when no build log uses them anymore.
+     */
+    private static final Cache<String, MaskingAutomaton> CACHE = CacheBuilder.newBuilder()
+            .maximumWeight(Math.max(0, CACHE_WEIGHT))
+            .weigher((String fingerprint, MaskingAutomaton automaton) -> automaton.getSize())
+            .weakValues()
+            .build();
+
+    private static final EnvInjectMetrics.Counter CACHE_HITS = EnvInjectMetrics.counter("cache_hits_total", "cache", "masking_automaton");
+
+    private static final EnvInjectMetrics.Counter CACHE_MISSES = EnvInjectMetrics.counter("cache_misses_total", "cache", "masking_automaton");
+
+    /**
+     * Key of the fingerprints, generated for each JVM so that fingerprints cannot be
+     * compared with precomputed hashes of candidate passwords.
+     */
+    private static final byte[] FINGERPRINT_KEY = new byte[32];
+
+    static {
+        new SecureRandom().nextBytes(FINGERPRINT_KEY);
+    }
+
+    @NonNull
+    private final byte[] mask;
+
+    /**
+     * Equivalence class of each byte value, bytes not used by any password share the class {@code 0}.
+     */
+    @NonNull
+    private final int[] classes;
+
+    private final int classCount;
+
+    /**
+     * Transitions of the complete automaton, indexed by {@code state * classCount + class}.
+     */
+    @NonNull
+    private final int[] transitions;
+
+    /**
+     * Length of the longest prefix of a password matched in the state.
+     */
+    @NonNull
+    private final int[] depths;
+
+    /**
+     * Length of the longest password, which is a suffix of the state, {@code 0} if none.
+     */
+    @NonNull
+    private final int[] matches;
+
+    private final int maxLength;
+
+    private MaskingAutomaton(@NonNull byte[] mask, @NonNull int[] classes, int classCount,
+            @NonNull int[] transitions, @NonNull int[] depths, @NonNull int[] matches, int maxLength) {
+        this.mask = mask;
+        this.classes = classes;
+        this.classCount = classCount;
+        this.transitions = transitions;
+        this.depths = depths;
+        this.matches = matches;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Checks whether a byte match of encoded passwords is always a character match in the charset.
+     * It is the case for UTF-8, which is self-synchronizing, and for single byte charsets.
+     * @param charset Charset
+     * @return {@code true} if the automaton can be used for texts in this charset
+     */
+    public static boolean supports(@NonNull Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            return true;
+        }
+        if (!charset.canEncode()) {
+            return false;
+        }
+        CharsetEncoder encoder = charset.newEncoder();
+        return encoder.maxBytesPerChar() == 1.0f && encoder.averageBytesPerChar() == 1.0f;
+    }
+
+    /**
+     * Checks whether the transition table of the automaton for the passwords is small enough to be compiled.
+     * Larger sets of passwords have to be masked without automaton.
+     * @param passwords Passwords to mask, {@code null} and empty ones are ignored
+     * @param charset Charset of the masked texts, see {@link #supports(Charset)}
+     * @return {@code true} if the automaton can be compiled
+     */
+    public static boolean fits(@CheckForNull Collection<String> passwords, @NonNull Charset charset) {
+        return passwords == null || tableSize(encode(passwords, charset)) <= MAX_TABLE_SIZE;
+    }
+
+    /**
+     * Computes the maximum size of the transition table, each password byte may add a state.
+     */
+    private static long tableSize(@NonNull Set<ByteBuffer> encoded) {
+        boolean[] used = new boolean[256];
+        long classCount = 1;
+        long totalLength = 0;
+        for (ByteBuffer password : encoded) {
+            for (byte b : password.array()) {
+                if (!used[b & 0xff]) {
+                    used[b & 0xff] = true;
+                    classCount++;
+                }
+            }
+            totalLength += password.array().length;
+        }
+        return (totalLength + 1) * classCount;
+    }
+
+    /**
+     * Compiles the automaton for the passwords.
+     * @param passwords Passwords to mask, {@code null} and empty ones are ignored
+     * @param charset Charset of the masked texts, see {@link #supports(Charset)}
+     * @param mask Replacement of the passwords
+     * @return Automaton, or {@code null} if there is nothing to mask
+     * @throws IllegalArgumentException The charset is not supported, or the automaton is too large,
+     * see {@link #fits(Collection, Charset)}
+     */
+    @CheckForNull
+    public static MaskingAutomaton compile(@CheckForNull Collection<String> passwords, @NonNull Charset charset,
+            @NonNull String mask) {
+        if (!supports(charset)) {
+            throw new IllegalArgumentException("Unsupported charset " + charset);
+        }
+        if (passwords == null) {
+            return null;
+        }
+
+        Set<ByteBuffer> encoded = encode(passwords, charset);
+        if (encoded.isEmpty()) {
+            return null;
+        }
+        if (tableSize(encoded) > MAX_TABLE_SIZE) {
+            throw new IllegalArgumentException("The transition table would have more than " + MAX_TABLE_SIZE + " entries");
+        }
+
+        // Compress the alphabet to the bytes used by passwords
+        int[] classes = new int[256];
+        int classCount = 1;
+        int totalLength = 0;
+        int maxLength = 0;
+        for (ByteBuffer password : encoded) {
+            for (byte b : password.array()) {
+                if (classes[b & 0xff] == 0) {
+                    classes[b & 0xff] = classCount++;
+                }
+            }
+            totalLength += password.array().length;
+            maxLength = Math.max(maxLength, password.array().length);
+        }
+
+        // Trie, missing transitions are -1
+        int maxStates = totalLength + 1;
+        int[] transitions = new int[maxStates * classCount];
+        Arrays.fill(transitions, -1);
+        int[] depths = new int[maxStates];
+        int[] matches = new int[maxStates];
+        int states = 1;
+        for (ByteBuffer password : encoded) {
+            int state = 0;
+            for (byte b : password.array()) {
+                int index = state * classCount + classes[b & 0xff];
+                if (transitions[index] < 0) {
+                    depths[states] = depths[state] + 1;
+                    transitions[index] = states++;
+                }
+                state = transitions[index];
+            }
+            matches[state] = depths[state];
+        }
+
+        // Complete the transitions in breadth-first order through the failure links
+        int[] failures = new int[states];
+        Queue<Integer> queue = new ArrayDeque<Integer>();
+        for (int c = 0; c < classCount; c++) {
+            int next = transitions[c];
+            if (next < 0) {
+                transitions[c] = 0;
+            } else {
+                failures[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            int failure = failures[state];
+            if (matches[state] == 0) {
+                matches[state] = matches[failure];
+            }
+            for (int c = 0; c < classCount; c++) {
+                int index = state * classCount + c;
+                int next = transitions[index];
+                if (next < 0) {
+                    transitions[index] = transitions[failure * classCount + c];
+                } else {
+                    failures[next] = transitions[failure * classCount + c];
+                    queue.add(next);
+                }
+            }
+        }
+
+        return new MaskingAutomaton(mask.getBytes(charset), classes, classCount,
+                Arrays.copyOf(transitions, states * classCount), Arrays.copyOf(depths, states), Arrays.copyOf(matches, states), maxLength);
+    }
+
+    /**
+     * Gets the automaton for the passwords, from the cache if possible.
+     * @param passwords Passwords to mask, {@code null} and empty ones are ignored
+     * @param charset Charset of the masked texts, see {@link #supports(Charset)}
+     * @param mask Replacement of the passwords
+     * @return Automaton, or {@code null} if there is nothing to mask
+     * @throws IllegalArgumentException The charset is not supported, or the automaton is too large,
+     * see {@link #fits(Collection, Charset)}
+     */
+    @CheckForNull
+    public static MaskingAutomaton get(@CheckForNull Collection<String> passwords, @NonNull Charset charset,
+            @NonNull String mask) {
+        if (!supports(charset)) {
+            throw new IllegalArgumentException("Unsupported charset " + charset);
+        }
+        if (passwords == null) {
+            return null;
+        }
+        // The order and duplicates of the passwords do not change the masking
+        Set<String> distinct = new TreeSet<String>();
+        for (String password : passwords) {
+            if (password != null && !password.isEmpty()) {
+                distinct.add(password);
+            }
+        }
+        if (distinct.isEmpty()) {
+            return null;
+        }
+
+        String fingerprint = fingerprint(distinct, charset, mask);
+        MaskingAutomaton automaton = CACHE.getIfPresent(fingerprint);
+        if (automaton == null) {
+            CACHE_MISSES.increment();
+            automaton = compile(distinct, charset, mask);
+            if (automaton != null) {
+                CACHE.put(fingerprint, automaton);
+            }
+        } else {
+            CACHE_HITS.increment();
+        }
+        return automaton;
+    }
+
+    /**
+     * Removes all cached automata.
+     */
+    static void clearCache() {
+        CACHE.invalidateAll();
+    }
+
+    /**
+     * Computes a keyed hash of the passwords, which identifies them without allowing to recover them.
+     */
+    @NonNull
+    static String fingerprint(@NonNull Set<String> passwords, @NonNull Charset charset, @NonNull String mask) {
+        Mac mac;
+        try {
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(FINGERPRINT_KEY, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+        update(mac, charset.name());
+        update(mac, mask);
+        for (String password : passwords) {
+            update(mac, password);
+        }
+        return Base64.getEncoder().encodeToString(mac.doFinal());
+    }
+
+    private static void update(@NonNull Mac mac, @NonNull String value) {
+        // Length prefixed, so that different sets cannot have the same input
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        mac.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        mac.update(bytes);
+    }
+
+    @NonNull
+    private static Set<ByteBuffer> encode(@NonNull Collection<String> passwords, @NonNull Charset charset) {
+        Set<ByteBuffer> encoded = new LinkedHashSet<ByteBuffer>();
+        for (String password : passwords) {
+            if (password == null || password.isEmpty()) {
+                continue;
+            }
+            byte[] bytes = encode(password, charset);
+            if (bytes != null && bytes.length > 0) {
+                encoded.add(ByteBuffer.wrap(bytes));
+            }
+        }
+        return encoded;
+    }
+
+    @CheckForNull
+    private static byte[] encode(@NonNull String password, @NonNull Charset charset) {
+        // A password, which cannot be encoded, never appears in a text decoded with this charset
+        CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        try {
+            ByteBuffer buffer = encoder.encode(CharBuffer.wrap(password));
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the bytes with all passwords replaced by the mask.
+     * @param bytes Text
+     * @param offset Start of the text
+     * @param length Length of the text
+     * @param out Output
+     * @throws IOException Write failure
+     */
+    public void mask(@NonNull byte[] bytes, int offset, int length, @NonNull OutputStream out) throws IOException {
+        mask(bytes, offset, length, out, true);
+    }
+
+    /**
+     * Writes the masked beginning of the bytes, which cannot be changed by bytes following them.
+     * The remaining bytes may be the start of a password and have to be passed again with the next bytes.
+     * There are less than {@link #getMaxLength()} remaining bytes.
+     * @param bytes Text
+     * @param offset Start of the text
+     * @param length Length of the text
+     * @param out Output
+     * @return Number of processed bytes, the remaining ones are not written
+     * @throws IOException Write failure
+     */
+    public int maskPrefix(@NonNull byte[] bytes, int offset, int length, @NonNull OutputStream out) throws IOException {
+        return mask(bytes, offset, length, out, false) - offset;
+    }
+
+    /**
+     * Gets the length of the longest encoded password.
+     * @return Length in bytes
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Estimates the memory used by the automaton.
+     * @return Size in bytes
+     */
+    int getSize() {
+        return mask.length + 4 * (classes.length + transitions.length + depths.length + matches.length);
+    }
+
+    private int mask(@NonNull byte[] bytes, int offset, int length, @NonNull OutputStream out, boolean last)
+            throws IOException {
+        final int end = offset + length;
+        int written = offset;
+        int state = 0;
+        int matchStart = -1;
+        int matchEnd = -1;
+        int i = offset;
+        while (true) {
+            if (i < end) {
+                state = transitions[state * classCount + classes[bytes[i] & 0xff]];
+                int match = matches[state];
+                if (match > 0) {
+                    int start = i - match + 1;
+                    if (matchStart < 0 || start <= matchStart) {
+                        // Earlier or, with the same start, longer
+                        matchStart = start;
+                        matchEnd = i + 1;
+                    }
+                }
+                // No later match can start before the pending one
+                if (matchStart < 0 || i - depths[state] + 1 <= matchStart) {
+                    i++;
+                    continue;
+                }
+            } else if (!last && (matchStart < 0 || end - matchStart < maxLength)) {
+                // Following bytes may extend the pending match or complete a password starting
+                // in the current state, which is not after the pending match
+                int processed = end - depths[state];
+                out.write(bytes, written, processed - written);
+                return processed;
+            } else if (matchStart < 0) {
+                break;
+            }
+
+            out.write(bytes, written, matchStart - written);
+            out.write(mask);
+            written = matchEnd;
+            i = matchEnd;
+            state = 0;
+            matchStart = -1;
+        }
+        out.write(bytes, written, end - written);
+        return end;
+    }
+
+    /**
+     * Same as {@link #mask(byte[], int, int, OutputStream)}, for tests.
+     */
+    @NonNull
+    byte[] mask(@NonNull byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        try {
+            mask(bytes, 0, bytes.length, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+}
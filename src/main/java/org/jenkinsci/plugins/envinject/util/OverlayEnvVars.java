@@ -0,0 +1,235 @@
+package org.jenkinsci.plugins.envinject.util;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Mutable environment variables defined as the differences with an immutable base, which is shared.
+ * <p>
+ * Builds on the same node inject nearly the same variables, mostly the environment of the node.
+ * The base holds those variables once for all builds, each build only holds the variables it changes or removes.
+ * Variables of the base keep their position in the iteration order, added variables follow them.
+ * <p>
+ * The base is not copied and must not be modified. Like {@link HashMap}, the map is not thread-safe.
+ * It is serialized as a {@link LinkedHashMap}.
+ * @since TODO
+ */
+@Restricted(NoExternalUse.class)
+public final class OverlayEnvVars extends AbstractMap<String, String> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+
+    @NonNull
+    private final transient Map<String, String> base;
+
+    /**
+     * Values of changed and added variables.
+     */
+    @NonNull
+    private final transient Map<String, String> overlay = new LinkedHashMap<String, String>();
+
+    /**
+     * Removed variables of the base, they are never in the overlay.
+     */
+    @NonNull
+    private final transient Set<String> removed = new HashSet<String>();
+
+    private transient int size;
+
+    /**
+     * Creates variables equal to the base.
+     * @param base Shared variables. They are not copied and must not be modified afterwards
+     */
+    public OverlayEnvVars(@NonNull Map<String, String> base) {
+        this.base = base;
+        this.size = base.size();
+    }
+
+    /**
+     * Interns a key or value of variables, so that equal strings of different builds and bases are shared.
+     * @param value String
+     * @return Canonical instance of the string
+     */
+    @CheckForNull
+    public static String intern(@CheckForNull String value) {
+        return value == null ? null : INTERNER.intern(value);
+    }
+
+    /**
+     * Copies variables with interned keys and values.
+     * @param variables Variables
+     * @return Mutable copy in the same iteration order
+     */
+    @NonNull
+    public static Map<String, String> internAll(@NonNull Map<String, String> variables) {
+        Map<String, String> result = new LinkedHashMap<String, String>(variables.size() * 4 / 3 + 1);
+        for (Entry<String, String> entry : variables.entrySet()) {
+            result.put(intern(entry.getKey()), intern(entry.getValue()));
+        }
+        return result;
+    }
+
+    @NonNull
+    public Map<String, String> getBase() {
+        return base;
+    }
+
+    /**
+     * Gets the number of variables differing from the base.
+     * @return Number of changed, added and removed variables
+     */
+    public int getDifferenceCount() {
+        return overlay.size() + removed.size();
+    }
+
+    @Override
+    public String get(Object key) {
+        String value = overlay.get(key);
+        if (value != null || overlay.containsKey(key)) {
+            return value;
+        }
+        return removed.contains(key) ? null : base.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return overlay.containsKey(key) || (!removed.contains(key) && base.containsKey(key));
+    }
+
+    @Override
+    public String put(@NonNull String key, String value) {
+        Objects.requireNonNull(key, "key");
+        boolean present = containsKey(key);
+        String previous = get(key);
+        boolean inBase = base.containsKey(key);
+        removed.remove(key);
+        if (inBase && Objects.equals(base.get(key), value)) {
+            // Back to the base value
+            overlay.remove(key);
+        } else {
+            overlay.put(intern(key), intern(value));
+        }
+        if (!present) {
+            size++;
+        }
+        return previous;
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (!containsKey(key)) {
+            return null;
+        }
+        String previous = get(key);
+        overlay.remove(key);
+        if (base.containsKey(key)) {
+            removed.add((String) key);
+        }
+        size--;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        overlay.clear();
+        removed.addAll(base.keySet());
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @NonNull
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            @NonNull
+            public Iterator<Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Iterates the base variables, which are not removed, with their current values, then the added ones.
+     * Removal is not supported.
+     */
+    private final class EntryIterator implements Iterator<Entry<String, String>> {
+
+        @NonNull
+        private final Iterator<Entry<String, String>> baseEntries = base.entrySet().iterator();
+
+        @NonNull
+        private final Iterator<Entry<String, String>> overlayEntries = overlay.entrySet().iterator();
+
+        @CheckForNull
+        private Entry<String, String> next;
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            while (baseEntries.hasNext()) {
+                Entry<String, String> entry = baseEntries.next();
+                String key = entry.getKey();
+                if (removed.contains(key)) {
+                    continue;
+                }
+                String value = overlay.get(key);
+                next = value != null || overlay.containsKey(key)
+                        ? new SimpleImmutableEntry<String, String>(key, value)
+                        : new SimpleImmutableEntry<String, String>(entry);
+                return true;
+            }
+            while (overlayEntries.hasNext()) {
+                Entry<String, String> entry = overlayEntries.next();
+                if (!base.containsKey(entry.getKey())) {
+                    next = new SimpleImmutableEntry<String, String>(entry);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, String> result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    private Object writeReplace() {
+        return new LinkedHashMap<String, String>(this);
+    }
+}
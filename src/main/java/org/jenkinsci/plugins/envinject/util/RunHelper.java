@@ -1,7 +1,9 @@
 package org.jenkinsci.plugins.envinject.util;
 
 import hudson.EnvVars;
+import hudson.FilePath;
 import hudson.matrix.MatrixRun;
+import hudson.model.Action;
 import hudson.model.AbstractBuild;
 import hudson.model.Environment;
 import hudson.model.EnvironmentContributor;
@@ -15,22 +17,28 @@ import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.util.LogTaskListener;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.jenkinsci.lib.envinject.EnvInjectException;
 import org.jenkinsci.lib.envinject.EnvInjectLogger;
 import org.jenkinsci.plugins.envinject.EnvInjectJobProperty;
 import org.jenkinsci.plugins.envinject.EnvInjectJobPropertyInfo;
 import org.jenkinsci.plugins.envinject.EnvInjectPluginAction;
 import org.jenkinsci.plugins.envinject.service.BuildCauseRetriever;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
 import org.jenkinsci.plugins.envinject.service.EnvInjectVariableGetter;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -44,6 +52,19 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 public class RunHelper {
     
     private static final Logger LOGGER = Logger.getLogger(RunHelper.class.getName());
+
+    /**
+     * Build variables of running builds, see {@link #getBuildVariables(Run, EnvInjectLogger)}.
+     */
+    private static final Map<Run<?, ?>, BuildVariablesSnapshot> BUILD_VARIABLES =
+            Collections.synchronizedMap(new WeakHashMap<Run<?, ?>, BuildVariablesSnapshot>());
+
+    /**
+     * Environment contributors running at least this long are reported in the build log.
+     * A negative value disables the timing of contributors.
+     */
+    private static final long SLOW_CONTRIBUTOR_THRESHOLD_MILLIS = SystemProperties.getLong(
+            RunHelper.class.getName() + ".slowContributorThresholdMillis", 1000L);
     
     /**
      * Compatible version of {@link AbstractBuild#getSensitiveBuildVariables()}
@@ -116,19 +137,86 @@ public class RunHelper {
     }
     
     // Moved from EnvInjectVariableGetter
-    
+
+    /**
+     * Gets build variables, including the variables of all {@link EnvironmentContributor}s, JDK and causes.
+     * <p>
+     * While the run is building, the result is kept and shared by all callers, see {@link #invalidateBuildVariables(Run)}.
+     * @param run Run
+     * @param logger Logger
+     * @return Build variables, the map is owned by the caller
+     * @throws EnvInjectException Retrieval failure
+     */
     public static Map<String, String> getBuildVariables(@NonNull Run<?, ?> run, @NonNull EnvInjectLogger logger) throws EnvInjectException {
+        if (!run.isBuilding()) {
+            BUILD_VARIABLES.remove(run);
+            return computeBuildVariables(run, logger);
+        }
+
+        BuildVariablesSnapshot snapshot = BUILD_VARIABLES.get(run);
+        List<Object> fingerprint = getBuildVariablesFingerprint(run);
+        if (snapshot == null || !snapshot.fingerprint.equals(fingerprint)) {
+            snapshot = new BuildVariablesSnapshot(computeBuildVariables(run, logger), fingerprint);
+            BUILD_VARIABLES.put(run, snapshot);
+        }
+        return new EnvVars(snapshot.variables);
+    }
+
+    /**
+     * Drops the build variables kept for the run, so they are computed again on the next call.
+     * <p>
+     * The actions, the executor, the node, the workspace and the set up environments of the run are checked
+     * by {@link #getBuildVariables(Run, EnvInjectLogger)}, so added, removed or replaced actions are detected.
+     * Changes not visible in that state must be followed by a call to this method:
+     * actions modified in place (e.g. an overridden {@link EnvInjectPluginAction}) or the SCM checkout.
+     * {@link org.jenkinsci.plugins.envinject.service.EnvInjectActionSetter} calls it on each injection.
+     * @param run Run
+     * @since TODO
+     */
+    public static void invalidateBuildVariables(@NonNull Run<?, ?> run) {
+        BUILD_VARIABLES.remove(run);
+    }
+
+    /**
+     * State of the run, which is likely to change contributed variables.
+     * Actions are compared by identity, so replaced actions are detected, but not actions modified in place,
+     * see {@link #invalidateBuildVariables(Run)}.
+     * Only identity hash codes are kept, since the actions reference the run, which is a weak key.
+     * The persisted actions are used, transient actions may be created again on each call of {@link Run#getAllActions()}.
+     */
+    @NonNull
+    @SuppressWarnings("deprecation")
+    private static List<Object> getBuildVariablesFingerprint(@NonNull Run<?, ?> run) {
+        Executor executor = run.getExecutor();
+        List<Object> fingerprint = new ArrayList<Object>(5);
+        List<Action> actions = run.getActions();
+        List<Integer> actionIds = new ArrayList<Integer>(actions.size());
+        for (Action action : actions) {
+            actionIds.add(System.identityHashCode(action));
+        }
+        fingerprint.add(actionIds);
+        fingerprint.add(executor != null ? executor.getNumber() : -1);
+        if (run instanceof AbstractBuild) {
+            AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) run;
+            List<Environment> environments = build.getEnvironments();
+            FilePath workspace = build.getWorkspace();
+            fingerprint.add(build.getBuiltOnStr());
+            fingerprint.add(workspace != null ? workspace.getRemote() : null);
+            fingerprint.add(environments != null ? environments.size() : 0);
+        }
+        return fingerprint;
+    }
+
+    @NonNull
+    private static EnvVars computeBuildVariables(@NonNull Run<?, ?> run, @NonNull EnvInjectLogger logger) throws EnvInjectException {
         EnvVars result = new EnvVars();
 
         //Add build process variables
         result.putAll(run.getCharacteristicEnvVars());
 
         try {
-            EnvVars envVars = new EnvVars();
-            for (EnvironmentContributor ec : EnvironmentContributor.all()) {
-                ec.buildEnvironmentFor(run, envVars, new LogTaskListener(LOGGER, Level.ALL));
-                result.putAll(envVars);
-            }
+            // Contributors only see each other's variables, so they are collected once
+            result.putAll(getContributedVariables(run, logger));
             
             // Handle JDK
             RunHelper.getJDKVariables(run, logger.getListener(), result);
@@ -159,6 +247,35 @@ public class RunHelper {
         return result;
     }
 
+    /**
+     * Collects the variables of all {@link EnvironmentContributor}s in a single map.
+     * Contributors slower than {@link #SLOW_CONTRIBUTOR_THRESHOLD_MILLIS} are reported in the build log.
+     */
+    @NonNull
+    private static EnvVars getContributedVariables(@NonNull Run<?, ?> run, @NonNull EnvInjectLogger logger)
+            throws IOException, InterruptedException {
+        EnvVars envVars = new EnvVars();
+        TaskListener listener = new LogTaskListener(LOGGER, Level.ALL);
+        boolean timed = SLOW_CONTRIBUTOR_THRESHOLD_MILLIS >= 0;
+        for (EnvironmentContributor ec : EnvironmentContributor.all()) {
+            if (!timed) {
+                ec.buildEnvironmentFor(run, envVars, listener);
+                continue;
+            }
+
+            long start = System.nanoTime();
+            ec.buildEnvironmentFor(run, envVars, listener);
+            long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            EnvInjectMetrics.histogram("contributor_duration_milliseconds", "contributor", ec.getClass().getName()).record(durationMillis);
+            LOGGER.log(Level.FINE, "{0} contributed to {1} in {2} ms",
+                    new Object[] {ec.getClass().getName(), run, durationMillis});
+            if (durationMillis >= SLOW_CONTRIBUTOR_THRESHOLD_MILLIS) {
+                logger.info(String.format("Environment contributor %s took %d ms.", ec.getClass().getName(), durationMillis));
+            }
+        }
+        return envVars;
+    }
+
     @CheckForNull
     public static EnvInjectJobProperty getEnvInjectJobProperty(@NonNull Run<?, ?> build) {
         if (build == null) {
@@ -219,4 +336,21 @@ public class RunHelper {
         Map<String, String> envVars = envInjectPluginAction.getEnvMap();
         return (envVars) == null ? new HashMap<String, String>() : envVars;
     }
+
+    /**
+     * Build variables with the state of the run they have been computed for.
+     */
+    private static final class BuildVariablesSnapshot {
+
+        @NonNull
+        private final EnvVars variables;
+
+        @NonNull
+        private final List<Object> fingerprint;
+
+        BuildVariablesSnapshot(@NonNull EnvVars variables, @NonNull List<Object> fingerprint) {
+            this.variables = variables;
+            this.fingerprint = fingerprint;
+        }
+    }
 }
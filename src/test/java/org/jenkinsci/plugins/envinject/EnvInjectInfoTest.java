@@ -0,0 +1,54 @@
+package org.jenkinsci.plugins.envinject;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests of {@link EnvInjectInfo}.
+ */
+class EnvInjectInfoTest {
+
+    @Test
+    void parsedContentIsExpandedPerCall() {
+        EnvInjectInfo info = new EnvInjectInfo(null, "A=$X/a\nB=b");
+
+        Map<String, String> first = info.getPropertiesContentMap(Collections.singletonMap("X", "1"));
+        assertEquals("1/a", first.get("A"));
+        first.put("B", "modified");
+
+        Map<String, String> second = info.getPropertiesContentMap(Collections.singletonMap("X", "2"));
+        assertEquals("2/a", second.get("A"));
+        assertEquals("b", second.get("B"));
+    }
+
+    @Test
+    void changedContentIsParsedAgain() {
+        MutableInfo info = new MutableInfo("A=1");
+        assertEquals("1", info.getPropertiesContentMap(Collections.<String, String>emptyMap()).get("A"));
+
+        info.setPropertiesContent("A=2");
+
+        assertEquals("2", info.getPropertiesContentMap(Collections.<String, String>emptyMap()).get("A"));
+    }
+
+    @Test
+    void noContent() {
+        assertNull(new EnvInjectInfo(null, "  ").getPropertiesContentMap(Collections.<String, String>emptyMap()));
+    }
+
+    private static final class MutableInfo extends EnvInjectInfo {
+
+        MutableInfo(String propertiesContent) {
+            super(null, propertiesContent);
+        }
+
+        void setPropertiesContent(String propertiesContent) {
+            this.propertiesContent = propertiesContent;
+        }
+    }
+}
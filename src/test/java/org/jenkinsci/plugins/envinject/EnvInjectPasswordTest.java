@@ -17,6 +17,7 @@ import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.util.Secret;
 import org.jenkinsci.lib.envinject.EnvInjectAction;
+import org.jenkinsci.plugins.envinject.service.EnvInjectGlobalPasswordRetriever;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.Issue;
@@ -25,16 +26,20 @@ import org.jvnet.hudson.test.TestExtension;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -128,6 +133,28 @@ class EnvInjectPasswordTest {
         assertThat(outputStream.toByteArray(), is(new byte[0]));
     }
 
+    @Test
+    void testGlobalPasswordsAreServedFromMemory() throws Exception {
+        EnvInjectNodeProperty.EnvInjectNodePropertyDescriptor descriptor =
+                jenkins.jenkins.getDescriptorByType(EnvInjectNodeProperty.EnvInjectNodePropertyDescriptor.class);
+        descriptor.setEnvInjectGlobalPasswordEntries(Collections.singletonList(
+                new EnvInjectGlobalPasswordEntry(PWD_KEY, PWD_VALUE)));
+        File configFile = new File(jenkins.jenkins.getRootDir(),
+                EnvInjectNodeProperty.EnvInjectNodePropertyDescriptor.ENVINJECT_CONFIG + ".xml");
+        assertTrue(configFile.exists());
+
+        // The passwords are not read again from the file
+        assertTrue(configFile.delete());
+        EnvInjectGlobalPasswordEntry[] entries = new EnvInjectGlobalPasswordRetriever().getGlobalPasswords();
+        assertNotNull(entries);
+        assertEquals(1, entries.length);
+        assertEquals(PWD_KEY, entries[0].getName());
+        assertEquals(PWD_VALUE, entries[0].getValue().getPlainText());
+
+        descriptor.setEnvInjectGlobalPasswordEntries(Collections.<EnvInjectGlobalPasswordEntry>emptyList());
+        assertNull(new EnvInjectGlobalPasswordRetriever().getGlobalPasswords());
+    }
+
     private void checkEnvInjectResult(FreeStyleBuild build) {
         EnvInjectAction action = build.getAction(EnvInjectAction.class);
         Map<String, String> envVars = action.getEnvMap();
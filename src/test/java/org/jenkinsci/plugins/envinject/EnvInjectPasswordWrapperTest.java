@@ -0,0 +1,125 @@
+package org.jenkinsci.plugins.envinject;
+
+import org.jenkinsci.plugins.envinject.util.MaskingAutomaton;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EnvInjectPasswordWrapperTest {
+
+    private static final String MASK = EnvInjectPlugin.DEFAULT_MASK;
+
+    @Test
+    void passwordSplitAcrossChunks() throws Exception {
+        MaskingAutomaton automaton = compile("0123456789abcdef");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream stream =
+                new EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream(out, automaton, 8);
+        for (byte b : "token=0123456789abcdef, again 0123456789abcdef\n".getBytes(StandardCharsets.UTF_8)) {
+            stream.write(b);
+        }
+        assertEquals("token=" + MASK + ", again " + MASK + "\n", out.toString(StandardCharsets.UTF_8.name()));
+        stream.close();
+    }
+
+    @Test
+    void carriageReturnsAreWrittenWithoutLineEnd() throws Exception {
+        MaskingAutomaton automaton = compile("secret");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream stream =
+                new EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream(out, automaton, 1024);
+        write(stream, "secret 10%\r");
+        write(stream, "secret 20%\r");
+        assertEquals(MASK + " 10%\r" + MASK + " 20%\r", out.toString(StandardCharsets.UTF_8.name()));
+        stream.close();
+    }
+
+    @Test
+    void longLinesAreWrittenInChunks() throws Exception {
+        MaskingAutomaton automaton = compile("secret");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream stream =
+                new EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream(out, automaton, 64);
+        byte[] line = new byte[100000];
+        Arrays.fill(line, (byte) 's');
+        stream.write(line);
+        // At most a chunk is pending
+        assertTrue(out.size() > line.length - 64, "written: " + out.size());
+        stream.close();
+        assertEquals(line.length, out.size());
+    }
+
+    @Test
+    void flushKeepsPasswordStart() throws Exception {
+        MaskingAutomaton automaton = compile("secret");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream stream =
+                new EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream(out, automaton, 1024);
+        write(stream, "value: sec");
+        stream.flush();
+        assertEquals("value: ", out.toString(StandardCharsets.UTF_8.name()));
+        write(stream, "ret, sec");
+        stream.close();
+        assertEquals("value: " + MASK + ", sec", out.toString(StandardCharsets.UTF_8.name()));
+    }
+
+    @Test
+    void parityWithWholeTextMasking() throws Exception {
+        Random random = new Random(42);
+        String alphabet = "abc\u00e9\n\r ";
+        for (int run = 0; run < 5000; run++) {
+            List<String> passwords = new ArrayList<String>();
+            int count = 1 + random.nextInt(4);
+            for (int i = 0; i < count; i++) {
+                passwords.add(randomString(random, alphabet, 1 + random.nextInt(6)));
+            }
+            MaskingAutomaton automaton = MaskingAutomaton.compile(passwords, StandardCharsets.UTF_8, MASK);
+            byte[] text = randomString(random, alphabet, random.nextInt(80)).getBytes(StandardCharsets.UTF_8);
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            automaton.mask(text, 0, text.length, expected);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream stream =
+                    new EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream(out, automaton, 1 + random.nextInt(16));
+            int offset = 0;
+            while (offset < text.length) {
+                int length = Math.min(text.length - offset, random.nextInt(10));
+                stream.write(text, offset, length);
+                offset += length;
+                if (random.nextInt(4) == 0) {
+                    stream.flush();
+                }
+            }
+            stream.close();
+            assertEquals(expected.toString(StandardCharsets.UTF_8.name()), out.toString(StandardCharsets.UTF_8.name()),
+                    "passwords=" + passwords + ", text=" + new String(text, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static MaskingAutomaton compile(String... passwords) {
+        return MaskingAutomaton.compile(Arrays.asList(passwords), StandardCharsets.UTF_8, MASK);
+    }
+
+    private static void write(EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream stream, String text)
+            throws IOException {
+        stream.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+}
@@ -14,6 +14,8 @@ import org.acegisecurity.Authentication;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.acegisecurity.userdetails.UsernameNotFoundException;
+import org.jenkinsci.plugins.envinject.service.EnvInjectVarsStore;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.CaptureEnvironmentBuilder;
@@ -21,6 +23,11 @@ import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.MockAuthorizationStrategy;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
@@ -126,6 +133,100 @@ class EnvInjectPluginActionTest {
                 "User should have a permission to see injected vars");
     }
 
+    @AfterEach
+    void tearDown() {
+        EnvInjectVarsStore.ENABLED = false;
+    }
+
+    @Test
+    void variablesAreStoredInLegacyFileByDefault() throws Exception {
+        FreeStyleBuild build = j.buildAndAssertSuccess(p);
+        assertTrue(new File(build.getRootDir(), EnvInjectVarsStore.LEGACY_FILE_NAME).isFile());
+        assertFalse(new File(build.getRootDir(), EnvInjectVarsStore.FILE_NAME).exists());
+
+        j.jenkins.reload();
+        FreeStyleBuild reloaded = j.jenkins.getItemByFullName(p.getFullName(), FreeStyleProject.class).getBuildByNumber(1);
+        EnvInjectPluginAction action = reloaded.getAction(EnvInjectPluginAction.class);
+        assertNotNull(action);
+        assertEquals("BAR", action.getEnvMap().get("FOO"));
+    }
+
+    @Test
+    void variablesAreStoredAsDifference() throws Exception {
+        EnvInjectVarsStore.ENABLED = true;
+        FreeStyleBuild first = j.buildAndAssertSuccess(p);
+        FreeStyleBuild second = j.buildAndAssertSuccess(p);
+        for (FreeStyleBuild build : new FreeStyleBuild[] {first, second}) {
+            assertTrue(new File(build.getRootDir(), EnvInjectVarsStore.FILE_NAME).isFile());
+            assertFalse(new File(build.getRootDir(), EnvInjectVarsStore.LEGACY_FILE_NAME).exists());
+        }
+        assertEquals(EnvInjectVarsStore.readBaseId(first.getRootDir()), EnvInjectVarsStore.readBaseId(second.getRootDir()));
+
+        j.jenkins.reload();
+        FreeStyleBuild reloaded = j.jenkins.getItemByFullName(p.getFullName(), FreeStyleProject.class).getBuildByNumber(2);
+        EnvInjectPluginAction action = reloaded.getAction(EnvInjectPluginAction.class);
+        assertNotNull(action);
+        assertEquals("BAR", action.getEnvMap().get("FOO"));
+        assertEquals("2", action.getEnvMap().get("BUILD_NUMBER"));
+    }
+
+    @Test
+    void storedVariablesAreEvictable() throws Exception {
+        EnvInjectVarsStore.ENABLED = true;
+        j.buildAndAssertSuccess(p);
+        j.jenkins.reload();
+        FreeStyleBuild reloaded = j.jenkins.getItemByFullName(p.getFullName(), FreeStyleProject.class).getBuildByNumber(1);
+        EnvInjectPluginAction action = reloaded.getAction(EnvInjectPluginAction.class);
+        assertNotNull(action);
+
+        // Loaded again after the eviction
+        assertEquals("BAR", action.getEnvMap().get("FOO"));
+        EnvInjectPluginAction.evictStoredEnvMaps();
+        assertEquals("BAR", action.getEnvMap().get("FOO"));
+
+        // Modified variables are kept until they are stored
+        action.overrideAll(null, Collections.singletonMap("FOO", "BAZ"));
+        EnvInjectPluginAction.evictStoredEnvMaps();
+        assertEquals("BAZ", action.getEnvMap().get("FOO"));
+        reloaded.save();
+        EnvInjectPluginAction.evictStoredEnvMaps();
+        assertEquals("BAZ", action.getEnvMap().get("FOO"));
+    }
+
+    @Test
+    void overrideOfStoredVariablesUpdatesSensitiveVariables() throws Exception {
+        EnvInjectVarsStore.ENABLED = true;
+        j.buildAndAssertSuccess(p);
+        j.jenkins.reload();
+        FreeStyleBuild reloaded = j.jenkins.getItemByFullName(p.getFullName(), FreeStyleProject.class).getBuildByNumber(1);
+        EnvInjectPluginAction action = reloaded.getAction(EnvInjectPluginAction.class);
+        assertNotNull(action);
+
+        action.overrideAll(Collections.singleton("SECRET"), Collections.singletonMap("SECRET", "s3cr3t"));
+        assertEquals(Collections.singleton("SECRET"), action.getSensibleVariables());
+        reloaded.save();
+
+        j.jenkins.reload();
+        reloaded = j.jenkins.getItemByFullName(p.getFullName(), FreeStyleProject.class).getBuildByNumber(1);
+        action = reloaded.getAction(EnvInjectPluginAction.class);
+        assertEquals(Collections.singleton("SECRET"), action.getSensibleVariables());
+        assertEquals(EnvInjectPlugin.DEFAULT_MASK, action.getEnvMap().get("SECRET"));
+        assertEquals("BAR", action.getEnvMap().get("FOO"));
+    }
+
+    @Test
+    void overrideDoesNotExpandOtherVariables() {
+        Map<String, String> envMap = new HashMap<>();
+        envMap.put("ESCAPED", "$$WORKSPACE/bin");
+        envMap.put("SHELL_EXPANDED", "$WORKSPACE/bin");
+        EnvInjectPluginAction action = new EnvInjectPluginAction(envMap);
+
+        action.overrideAll(null, Collections.singletonMap("WORKSPACE", "/ws"));
+
+        assertEquals("/ws", action.getEnvMap().get("WORKSPACE"));
+        assertEquals("$$WORKSPACE/bin", action.getEnvMap().get("ESCAPED"));
+        assertEquals("$WORKSPACE/bin", action.getEnvMap().get("SHELL_EXPANDED"));
+    }
 
     private boolean hasPermission(User user, AccessControlled item, Permission permission)
             throws AssertionError {
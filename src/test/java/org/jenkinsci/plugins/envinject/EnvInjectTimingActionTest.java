@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.envinject;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.htmlunit.html.HtmlPage;
+import org.jenkinsci.plugins.envinject.service.EnvInjectMetrics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@WithJenkins
+class EnvInjectTimingActionTest {
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+    }
+
+    @Test
+    void phasesAreRecorded() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.getBuildWrappersList().add(new EnvInjectBuildWrapper(new EnvInjectJobPropertyInfo(
+                null, "TEXT_VAR=tvalue", null, null, false, null)));
+        p.getBuildersList().add(new EnvInjectBuilder(null, "STEP_VAR=svalue"));
+        FreeStyleBuild build = j.buildAndAssertSuccess(p);
+
+        EnvInjectTimingAction action = build.getAction(EnvInjectTimingAction.class);
+        assertNotNull(action);
+        Set<String> steps = new HashSet<String>();
+        for (EnvInjectTimingAction.Entry entry : action.getEntries()) {
+            steps.add(entry.getStep());
+        }
+        assertTrue(steps.contains("Environment setup"), steps.toString());
+        assertTrue(steps.contains("Build wrapper"), steps.toString());
+        assertTrue(steps.contains("Build step"), steps.toString());
+
+        assertTrue(EnvInjectMetrics.histogram("phase_duration_milliseconds", "phase", "properties").getCount() >= 2);
+
+        HtmlPage page = j.createWebClient().getPage(build, EnvInjectTimingAction.URL_NAME);
+        assertTrue(page.asNormalizedText().contains("Build wrapper"));
+    }
+}
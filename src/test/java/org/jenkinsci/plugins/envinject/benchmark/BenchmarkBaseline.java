@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Scores of a JMH JSON report, compared with the scores of a stored baseline report.
+ * Benchmarks are identified by their name and parameters, those missing from either report are ignored.
+ */
+final class BenchmarkBaseline {
+
+    /**
+     * Primary scores by benchmark name and parameters.
+     */
+    private final Map<String, Score> scores;
+
+    private BenchmarkBaseline(Map<String, Score> scores) {
+        this.scores = scores;
+    }
+
+    static BenchmarkBaseline read(File report) throws IOException {
+        Map<String, Score> scores = new TreeMap<>();
+        JSONArray results = JSONArray.fromObject(new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8));
+        for (Object item : results) {
+            JSONObject result = (JSONObject) item;
+            StringBuilder key = new StringBuilder(result.getString("benchmark"));
+            JSONObject params = result.optJSONObject("params");
+            if (params != null && !params.isNullObject()) {
+                key.append(new TreeMap<Object, Object>(params));
+            }
+            JSONObject primaryMetric = result.getJSONObject("primaryMetric");
+            scores.put(key.toString(), new Score(result.getString("mode"), primaryMetric.getDouble("score")));
+        }
+        return new BenchmarkBaseline(scores);
+    }
+
+    /**
+     * Finds the benchmarks, which are slower than in the baseline by more than the allowed percentage.
+     * @param baseline Baseline scores
+     * @param maxRegressionPercent Allowed slowdown, in percent
+     * @return Description of each regression
+     */
+    List<String> findRegressions(BenchmarkBaseline baseline, double maxRegressionPercent) {
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Score> entry : scores.entrySet()) {
+            Score expected = baseline.scores.get(entry.getKey());
+            if (expected == null || expected.value == 0 || !expected.mode.equals(entry.getValue().mode)) {
+                continue;
+            }
+            double slowdownPercent = entry.getValue().slowdownPercent(expected);
+            if (slowdownPercent > maxRegressionPercent) {
+                regressions.add(String.format("%s: %.3f instead of %.3f (%.1f%% slower)",
+                        entry.getKey(), entry.getValue().value, expected.value, slowdownPercent));
+            }
+        }
+        return regressions;
+    }
+
+    private static final class Score {
+
+        /**
+         * JMH mode, {@code thrpt} for throughput, otherwise a time per operation.
+         */
+        private final String mode;
+
+        private final double value;
+
+        private Score(String mode, double value) {
+            this.mode = mode;
+            this.value = value;
+        }
+
+        private double slowdownPercent(Score baseline) {
+            if (mode.equals("thrpt")) {
+                return (baseline.value - value) * 100 / baseline.value;
+            }
+            return (value - baseline.value) * 100 / baseline.value;
+        }
+    }
+}
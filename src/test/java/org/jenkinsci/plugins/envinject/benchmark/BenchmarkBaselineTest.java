@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BenchmarkBaselineTest {
+
+    @TempDir
+    File tmp;
+
+    @Test
+    void regressionsAboveThreshold() throws Exception {
+        BenchmarkBaseline baseline = BenchmarkBaseline.read(report("baseline.json",
+                result("mask", "thrpt", "{\"masker\":\"REGEX\",\"secrets\":\"1\"}", 100),
+                result("mask", "thrpt", "{\"masker\":\"AUTOMATON\",\"secrets\":\"1\"}", 100),
+                result("parse", "avgt", null, 10),
+                result("removed", "thrpt", null, 10)));
+        BenchmarkBaseline current = BenchmarkBaseline.read(report("current.json",
+                result("mask", "thrpt", "{\"secrets\":\"1\",\"masker\":\"REGEX\"}", 95),
+                result("mask", "thrpt", "{\"masker\":\"AUTOMATON\",\"secrets\":\"1\"}", 80),
+                result("parse", "avgt", null, 12),
+                result("added", "thrpt", null, 1)));
+
+        List<String> regressions = current.findRegressions(baseline, 10);
+        assertEquals(2, regressions.size(), regressions.toString());
+        assertTrue(regressions.get(0).startsWith("mask{masker=AUTOMATON, secrets=1}: 80.000 instead of 100.000"),
+                regressions.toString());
+        assertTrue(regressions.get(1).startsWith("parse: 12.000 instead of 10.000"), regressions.toString());
+
+        assertTrue(current.findRegressions(baseline, 25).isEmpty());
+    }
+
+    private File report(String name, String... results) throws Exception {
+        File file = new File(tmp, name);
+        Files.write(file.toPath(), ("[" + String.join(",", results) + "]").getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String result(String benchmark, String mode, String params, double score) {
+        return "{\"benchmark\":\"" + benchmark + "\",\"mode\":\"" + mode + "\","
+                + (params == null ? "" : "\"params\":" + params + ",")
+                + "\"primaryMetric\":{\"score\":" + score + ",\"scoreUnit\":\"ops/s\"}}";
+    }
+}
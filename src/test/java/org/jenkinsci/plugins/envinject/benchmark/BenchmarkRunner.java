@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import jenkins.benchmark.jmh.BenchmarkFinder;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs all benchmarks annotated with {@link jenkins.benchmark.jmh.JmhBenchmark}.
+ * Run by the {@code benchmark} profile of the parent POM: {@code mvn test -Dbenchmark}.
+ * Throughput and allocation rate ({@link GCProfiler}) are written as JSON to {@code target/jmh-report.json}.
+ * <p>
+ * If the {@code jmh.baseline} report exists, the run fails when a benchmark is more than
+ * {@code jmh.maxRegression} percent slower than in the baseline.
+ * Run with {@code -Djmh.updateBaseline} to store the report as the new baseline instead.
+ */
+class BenchmarkRunner {
+
+    private static final Logger LOGGER = Logger.getLogger(BenchmarkRunner.class.getName());
+
+    @Test
+    void runJmhBenchmarks() throws Exception {
+        File report = new File(System.getProperty("jmh.report", "target/jmh-report.json"));
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .warmupIterations(Integer.getInteger("jmh.warmupIterations", 3))
+                .measurementIterations(Integer.getInteger("jmh.measurementIterations", 5))
+                .forks(Integer.getInteger("jmh.forks", 1))
+                .timeUnit(TimeUnit.SECONDS)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(report.getPath());
+
+        String filter = System.getProperty("jmh.include");
+        if (filter != null) {
+            options.include(filter);
+        } else {
+            new BenchmarkFinder(getClass()).findBenchmarks(options);
+        }
+        new Runner(options.build()).run();
+
+        checkBaseline(report);
+    }
+
+    private static void checkBaseline(File report) throws IOException {
+        String baselinePath = System.getProperty("jmh.baseline");
+        if (baselinePath == null || baselinePath.isEmpty()) {
+            return;
+        }
+        File baseline = new File(baselinePath);
+        if (Boolean.getBoolean("jmh.updateBaseline")) {
+            Files.createDirectories(baseline.getAbsoluteFile().getParentFile().toPath());
+            Files.copy(report.toPath(), baseline.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        if (!baseline.isFile()) {
+            LOGGER.log(Level.INFO, "No benchmark baseline at {0}, run with -Djmh.updateBaseline to record one", baseline);
+            return;
+        }
+
+        double maxRegression = Double.parseDouble(System.getProperty("jmh.maxRegression", "10"));
+        List<String> regressions = BenchmarkBaseline.read(report)
+                .findRegressions(BenchmarkBaseline.read(baseline), maxRegression);
+        assertTrue(regressions.isEmpty(), "Benchmarks slower than the baseline by more than " + maxRegression + "%:\n"
+                + String.join("\n", regressions));
+    }
+}
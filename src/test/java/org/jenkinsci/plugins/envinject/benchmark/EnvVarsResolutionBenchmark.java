@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import hudson.model.TaskListener;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.jenkinsci.lib.envinject.EnvInjectLogger;
+import org.jenkinsci.plugins.envinject.service.EnvInjectEnvVars;
+import org.jenkinsci.plugins.envinject.util.LayeredEnvVars;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Benchmarks of the variable resolution and merge in {@link EnvInjectEnvVars}.
+ */
+@JmhBenchmark
+public class EnvVarsResolutionBenchmark {
+
+    @State(Scope.Thread)
+    public static class Workload {
+
+        @Param({"100", "1000", "20000"})
+        public int size;
+
+        @Param({"PLAIN", "CHAIN", "FAN_OUT", "SELF_REFERENCE", "CYCLE", "ESCAPED"})
+        public EnvVarsWorkload workload;
+
+        EnvInjectEnvVars service;
+
+        /**
+         * Infrastructure variables, e.g. inherited from the node.
+         */
+        Map<String, String> infraEnvVars;
+
+        /**
+         * Injected variables, 10% of the infrastructure ones, referencing them.
+         */
+        Map<String, String> propertiesEnvVars;
+
+        // Copies for benchmarks, which modify the maps in place
+        Map<String, String> variables;
+        Map<String, String> infraEnvVarsCopy;
+        Map<String, String> propertiesEnvVarsCopy;
+
+        @Setup(Level.Trial)
+        public void setUpTrial() {
+            service = new EnvInjectEnvVars(new EnvInjectLogger(TaskListener.NULL));
+            infraEnvVars = workload.create(size);
+            propertiesEnvVars = new LinkedHashMap<>();
+            for (int i = 0; i < Math.max(1, size / 10); i++) {
+                propertiesEnvVars.put("INJECTED_" + i, "${" + EnvVarsWorkload.name(i) + "}/injected");
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void setUpInvocation() {
+            variables = new LinkedHashMap<>(infraEnvVars);
+            infraEnvVarsCopy = new LinkedHashMap<>(infraEnvVars);
+            propertiesEnvVarsCopy = new LinkedHashMap<>(propertiesEnvVars);
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> resolveVars(Workload state) {
+        state.service.resolveVars(state.variables, state.variables);
+        return state.variables;
+    }
+
+    @Benchmark
+    public Map<String, String> getMergedVariables(Workload state) {
+        return state.service.getMergedVariables(state.infraEnvVarsCopy, state.propertiesEnvVarsCopy,
+                new HashMap<String, String>(), new HashMap<String, String>());
+    }
+
+    @Benchmark
+    public Map<String, String> getMergedVariablesView(Workload state) {
+        return state.service.getMergedVariablesView(LayeredEnvVars.of(state.infraEnvVarsCopy), state.propertiesEnvVarsCopy,
+                new HashMap<String, String>(), new HashMap<String, String>());
+    }
+
+    @Benchmark
+    public Map<String, String> removeUnsetVars(Workload state) {
+        return state.service.removeUnsetVars(state.infraEnvVars);
+    }
+}
@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Synthetic sets of environment variables for benchmarks.
+ */
+public enum EnvVarsWorkload {
+
+    /**
+     * Plain values without references.
+     */
+    PLAIN {
+        @Override
+        String value(int index, int size) {
+            return "/opt/tools/value-" + index;
+        }
+    },
+
+    /**
+     * A single reference chain through all variables, each variable references the next one.
+     */
+    CHAIN {
+        @Override
+        String value(int index, int size) {
+            if (index == size - 1) {
+                return "/chain-end";
+            }
+            return index % 1000 == 0 ? "${" + name(index + 1) + "}/" + index : "${" + name(index + 1) + "}";
+        }
+    },
+
+    /**
+     * Many variables referencing a few shared roots.
+     */
+    FAN_OUT {
+        @Override
+        String value(int index, int size) {
+            if (index < 10) {
+                return "/root-" + index;
+            }
+            return "$" + name(index % 10) + "/child-" + index + ":${" + name((index + 1) % 10) + "}";
+        }
+    },
+
+    /**
+     * Variables extending themselves, e.g. {@code PATH=$PATH:/opt/bin}.
+     */
+    SELF_REFERENCE {
+        @Override
+        String value(int index, int size) {
+            return "$" + name(index) + ":/opt/bin-" + index;
+        }
+    },
+
+    /**
+     * Pairs of variables referencing each other.
+     */
+    CYCLE {
+        @Override
+        String value(int index, int size) {
+            int other = index % 2 == 0 ? index + 1 : index - 1;
+            return other < size ? "x-$" + name(other) : "x";
+        }
+    },
+
+    /**
+     * Values with escaped dollar signs and references to undefined variables.
+     */
+    ESCAPED {
+        @Override
+        String value(int index, int size) {
+            return index % 2 == 0 ? "\\$HOME/escaped-" + index : "$$" + name((index + 1) % size) + "-${UNDEFINED_" + index + "}";
+        }
+    };
+
+    abstract String value(int index, int size);
+
+    static String name(int index) {
+        return "VAR_" + index;
+    }
+
+    /**
+     * Creates the variables.
+     * @param size Number of variables
+     * @return Variables in definition order
+     */
+    public Map<String, String> create(int size) {
+        Map<String, String> result = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            result.put(name(i), value(i, size));
+        }
+        return result;
+    }
+
+    /**
+     * Formats the variables as a properties file content.
+     * @param variables Variables
+     * @return Properties content
+     */
+    public static String toPropertiesContent(Map<String, String> variables) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            builder.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.jenkinsci.plugins.envinject.EnvInjectPasswordWrapper;
+import org.jenkinsci.plugins.envinject.EnvInjectPlugin;
+import org.jenkinsci.plugins.envinject.util.MaskingAutomaton;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks of the build log password masking of {@link EnvInjectPasswordWrapper}.
+ * <p>
+ * An operation masks a payload of at least 1 MiB made of whole lines, written in 8 KiB pieces.
+ * The {@code megabytes} counter gives the throughput in MB/s,
+ * the allocation per MB is {@code gc.alloc.rate.norm} divided by the payload size in MB.
+ */
+@JmhBenchmark
+public class PasswordMaskingBenchmark {
+
+    private static final int MIN_PAYLOAD_SIZE = 1024 * 1024;
+
+    private static final int WRITE_SIZE = 8192;
+
+    private static final String SECRET_ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-_\u00e9";
+
+    private static final String TEXT_ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789 =/.:";
+
+    public enum Masker {
+        /**
+         * Line based regex, {@link EnvInjectPasswordWrapper.EnvInjectPasswordsOutputStream}.
+         */
+        REGEX,
+        /**
+         * Chunked automaton, {@link EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream}.
+         */
+        AUTOMATON
+    }
+
+    public enum MatchDensity {
+        NONE(0),
+        /**
+         * About one secret every 4 KB.
+         */
+        SPARSE(4096),
+        /**
+         * About one secret every 100 B.
+         */
+        DENSE(100);
+
+        private final int interval;
+
+        MatchDensity(int interval) {
+            this.interval = interval;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Workload {
+
+        @Param({"REGEX", "AUTOMATON"})
+        public Masker masker;
+
+        @Param({"1", "50", "5000"})
+        public int secrets;
+
+        @Param({"8", "64"})
+        public int secretLength;
+
+        @Param({"80", "65536", "10485760"})
+        public int lineLength;
+
+        @Param({"NONE", "SPARSE", "DENSE"})
+        public MatchDensity matchDensity;
+
+        @Param({"UTF-8", "ISO-8859-1"})
+        public String charset;
+
+        byte[] payload;
+
+        OutputStream stream;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Random random = new Random(42);
+            Charset cs = Charset.forName(charset);
+            List<String> passwords = new ArrayList<String>();
+            for (int i = 0; i < secrets; i++) {
+                passwords.add(randomString(random, SECRET_ALPHABET, secretLength));
+            }
+            payload = createPayload(random, passwords, cs);
+
+            OutputStream out = OutputStream.nullOutputStream();
+            switch (masker) {
+                case REGEX:
+                    stream = new EnvInjectPasswordWrapper.EnvInjectPasswordsOutputStream(out, passwords, cs);
+                    break;
+                case AUTOMATON:
+                    stream = new EnvInjectPasswordWrapper.EnvInjectStreamingPasswordsOutputStream(out,
+                            MaskingAutomaton.compile(passwords, cs, EnvInjectPlugin.DEFAULT_MASK));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown masker " + masker);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            stream.close();
+        }
+
+        private byte[] createPayload(Random random, List<String> passwords, Charset cs) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(Math.max(MIN_PAYLOAD_SIZE, lineLength) + lineLength);
+            while (payload.size() < MIN_PAYLOAD_SIZE) {
+                StringBuilder line = new StringBuilder(lineLength);
+                int nextSecret = nextSecret(random, 0);
+                while (line.length() < lineLength - 1) {
+                    if (matchDensity != MatchDensity.NONE && line.length() >= nextSecret) {
+                        line.append(passwords.get(random.nextInt(passwords.size())));
+                        nextSecret = nextSecret(random, line.length());
+                    } else {
+                        line.append(TEXT_ALPHABET.charAt(random.nextInt(TEXT_ALPHABET.length())));
+                    }
+                }
+                line.setLength(lineLength - 1);
+                line.append('\n');
+                byte[] bytes = line.toString().getBytes(cs);
+                payload.write(bytes, 0, bytes.length);
+            }
+            return payload.toByteArray();
+        }
+
+        private int nextSecret(Random random, int position) {
+            return matchDensity == MatchDensity.NONE ? Integer.MAX_VALUE
+                    : position + random.nextInt(2 * matchDensity.interval);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Payload {
+
+        /**
+         * Masked megabytes, reported per second.
+         */
+        public double megabytes;
+    }
+
+    @Benchmark
+    public void mask(Workload state, Payload payload) throws IOException {
+        byte[] bytes = state.payload;
+        for (int offset = 0; offset < bytes.length; offset += WRITE_SIZE) {
+            state.stream.write(bytes, offset, Math.min(WRITE_SIZE, bytes.length - offset));
+        }
+        state.stream.flush();
+        payload.megabytes += bytes.length / 1e6;
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+}
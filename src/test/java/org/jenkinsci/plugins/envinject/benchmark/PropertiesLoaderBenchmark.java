@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.envinject.benchmark;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.jenkinsci.lib.envinject.EnvInjectException;
+import org.jenkinsci.plugins.envinject.service.PropertiesLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+
+/**
+ * Benchmarks of the properties parsing in {@link PropertiesLoader}.
+ */
+@JmhBenchmark
+public class PropertiesLoaderBenchmark {
+
+    @State(Scope.Thread)
+    public static class Workload {
+
+        @Param({"100", "1000", "20000"})
+        public int size;
+
+        @Param({"PLAIN", "FAN_OUT", "ESCAPED"})
+        public EnvVarsWorkload workload;
+
+        PropertiesLoader loader;
+
+        String content;
+
+        Map<String, String> currentEnvVars;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            loader = new PropertiesLoader();
+            content = EnvVarsWorkload.toPropertiesContent(workload.create(size))
+                    // Windows paths and network shares
+                    + "WINDOWS_PATH=C:\\Program Files\\Tool\\bin\n"
+                    + "NETWORK_SHARE=\\\\server\\share\\dir\n";
+            currentEnvVars = EnvVarsWorkload.PLAIN.create(10);
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> getVarsFromPropertiesContent(Workload state) throws EnvInjectException {
+        return state.loader.getVarsFromPropertiesContent(state.content, state.currentEnvVars);
+    }
+}
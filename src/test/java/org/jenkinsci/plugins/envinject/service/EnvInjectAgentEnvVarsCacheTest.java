@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.slaves.DumbSlave;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@WithJenkins
+class EnvInjectAgentEnvVarsCacheTest {
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+    }
+
+    @Test
+    void snapshotIsReusedUntilInvalidated() throws Exception {
+        FilePath rootPath = j.jenkins.getRootPath();
+        EnvInjectAgentEnvVarsCache.Snapshot snapshot = EnvInjectAgentEnvVarsCache.get(rootPath);
+        assertSame(snapshot, EnvInjectAgentEnvVarsCache.get(rootPath));
+
+        Computer computer = j.jenkins.toComputer();
+        assertNotNull(computer);
+        EnvInjectAgentEnvVarsCache.invalidate(computer);
+
+        EnvInjectAgentEnvVarsCache.Snapshot newSnapshot = EnvInjectAgentEnvVarsCache.get(rootPath);
+        assertNotSame(snapshot, newSnapshot);
+        assertTrue(newSnapshot.getVersion() > snapshot.getVersion());
+        assertEquals(snapshot.getEnvVars(), newSnapshot.getEnvVars());
+    }
+
+    @Test
+    void snapshotIsTakenOnlineAndDroppedOnReconnect() throws Exception {
+        DumbSlave agent = j.createOnlineSlave();
+        FilePath rootPath = agent.getRootPath();
+        assertNotNull(rootPath);
+        EnvInjectAgentEnvVarsCache.Snapshot snapshot = EnvInjectAgentEnvVarsCache.get(rootPath);
+        assertSame(snapshot, EnvInjectAgentEnvVarsCache.get(rootPath));
+
+        Computer computer = agent.toComputer();
+        assertNotNull(computer);
+        computer.disconnect(null).get();
+        computer.connect(false).get();
+
+        FilePath newRootPath = agent.getRootPath();
+        assertNotNull(newRootPath);
+        EnvInjectAgentEnvVarsCache.Snapshot newSnapshot = EnvInjectAgentEnvVarsCache.get(newRootPath);
+        assertNotSame(snapshot, newSnapshot);
+        assertSame(newSnapshot, EnvInjectAgentEnvVarsCache.get(newRootPath));
+    }
+}
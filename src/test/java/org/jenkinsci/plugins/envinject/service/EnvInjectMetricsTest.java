@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EnvInjectMetricsTest {
+
+    @Test
+    void counters() throws Exception {
+        EnvInjectMetrics.Counter counter = EnvInjectMetrics.counter("test_counter_total", "kind", "a");
+        assertSame(counter, EnvInjectMetrics.counter("test_counter_total", "kind", "a"));
+        counter.increment();
+        counter.add(2);
+        assertEquals(3, counter.getValue());
+
+        ObjectName name = new ObjectName(EnvInjectMetrics.JMX_DOMAIN + ":type=Counter,name="
+                + ObjectName.quote("test_counter_total{kind=a}"));
+        assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Value"));
+
+        assertThrows(IllegalArgumentException.class, () -> EnvInjectMetrics.histogram("test_counter_total", "kind", "a"));
+    }
+
+    @Test
+    void prometheusFormat() throws Exception {
+        EnvInjectMetrics.counter("test_format_total", "kind", "b").add(5);
+        EnvInjectMetrics.counter("test_format_total", "kind", "a\"quoted\"").increment();
+        EnvInjectMetrics.Histogram histogram = EnvInjectMetrics.histogram("test_format_milliseconds", null, null);
+        histogram.record(0);
+        histogram.record(7);
+        histogram.record(60000);
+        EnvInjectMetrics.gauge("test_format_ratio", null, null, () -> 0.5);
+
+        StringWriter writer = new StringWriter();
+        EnvInjectMetrics.writePrometheus(writer);
+        String text = writer.toString();
+
+        assertTrue(text.contains("# TYPE envinject_test_format_total counter\n"
+                + "envinject_test_format_total{kind=\"a\\\"quoted\\\"\"} 1\n"
+                + "envinject_test_format_total{kind=\"b\"} 5\n"), text);
+        assertTrue(text.contains("# TYPE envinject_test_format_milliseconds histogram\n"
+                + "envinject_test_format_milliseconds_bucket{le=\"1\"} 1\n"
+                + "envinject_test_format_milliseconds_bucket{le=\"5\"} 1\n"
+                + "envinject_test_format_milliseconds_bucket{le=\"10\"} 2\n"), text);
+        assertTrue(text.contains("envinject_test_format_milliseconds_bucket{le=\"30000\"} 2\n"
+                + "envinject_test_format_milliseconds_bucket{le=\"+Inf\"} 3\n"
+                + "envinject_test_format_milliseconds_sum 60007\n"
+                + "envinject_test_format_milliseconds_count 3\n"), text);
+        assertTrue(text.contains("# TYPE envinject_test_format_ratio gauge\nenvinject_test_format_ratio 0.5\n"), text);
+        assertEquals(60000, histogram.getMaxMillis());
+    }
+}
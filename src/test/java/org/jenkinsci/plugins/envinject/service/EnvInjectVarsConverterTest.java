@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EnvInjectVarsConverterTest {
+
+    @TempDir
+    File tmp;
+
+    private EnvInjectVarsStore store;
+
+    private EnvInjectVarsConverter converter;
+
+    @BeforeEach
+    void setUp() {
+        EnvInjectVarsStore.clearCache();
+        store = new EnvInjectVarsStore(new File(tmp, "store"));
+        converter = new EnvInjectVarsConverter(store, new File(tmp, "progress.xml"));
+    }
+
+    @Test
+    void readLegacyFile() throws Exception {
+        File file = new File(tmp, "legacy.txt");
+        Files.write(file.toPath(), "A=1\nB=x=y\nnot a variable\n=v\nEMPTY=\n".getBytes(Charset.defaultCharset()));
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("A", "1");
+        expected.put("B", "x=y");
+        expected.put("EMPTY", "");
+        assertEquals(expected, EnvInjectVarsConverter.readLegacyFile(file));
+    }
+
+    @Test
+    void convertBuilds() throws Exception {
+        File jobDir = new File(tmp, "job/builds");
+        long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        long legacySize = legacyBuild(jobDir, 1, "1", old)
+                + legacyBuild(jobDir, 2, "2", old)
+                + legacyBuild(jobDir, 10, "10", old);
+        // Possibly running
+        legacyBuild(jobDir, 11, "11", System.currentTimeMillis());
+
+        EnvInjectVarsConverter.Progress progress = new EnvInjectVarsConverter.Progress();
+        assertTrue(converter.convertBuilds(jobDir, buildDir -> variables(buildDir.getName()), RateLimiter.create(1e9), progress));
+
+        assertEquals(3, progress.getBuilds());
+        assertEquals(0, progress.getFailures());
+        assertEquals(legacySize, progress.getBytesRead());
+        assertTrue(progress.getBytesReclaimed() > 0);
+        for (int number : new int[] {1, 2, 10}) {
+            File buildDir = new File(jobDir, String.valueOf(number));
+            assertFalse(new File(buildDir, EnvInjectVarsStore.LEGACY_FILE_NAME).exists());
+            assertEquals(variables(String.valueOf(number)), store.load(buildDir));
+        }
+        // Consecutive builds share their base
+        assertEquals(EnvInjectVarsStore.readBaseId(new File(jobDir, "1")), EnvInjectVarsStore.readBaseId(new File(jobDir, "10")));
+
+        File running = new File(jobDir, "11");
+        assertTrue(new File(running, EnvInjectVarsStore.LEGACY_FILE_NAME).exists());
+        assertNull(store.load(running));
+    }
+
+    @Test
+    void differentVariablesAreNotConverted() throws Exception {
+        File jobDir = new File(tmp, "job/builds");
+        long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        legacyBuild(jobDir, 1, "1", old);
+        legacyBuild(jobDir, 2, "2", old);
+
+        // The EnvInject API reads the second build differently, or cannot read it
+        Map<Integer, Map<String, String>> apiVariables = new HashMap<>();
+        apiVariables.put(1, variables("1"));
+        Map<String, String> different = variables("2");
+        different.put("VAR_0", "/opt/tools/0=x");
+        apiVariables.put(2, different);
+        EnvInjectVarsConverter.Progress progress = new EnvInjectVarsConverter.Progress();
+        assertTrue(converter.convertBuilds(jobDir, buildDir -> apiVariables.get(Integer.valueOf(buildDir.getName())), RateLimiter.create(1e9), progress));
+
+        assertEquals(1, progress.getBuilds());
+        assertEquals(1, progress.getFailures());
+        File kept = new File(jobDir, "2");
+        assertTrue(new File(kept, EnvInjectVarsStore.LEGACY_FILE_NAME).exists());
+        assertFalse(EnvInjectVarsStore.exists(kept));
+
+        apiVariables.remove(2);
+        progress = new EnvInjectVarsConverter.Progress();
+        assertTrue(converter.convertBuilds(jobDir, buildDir -> apiVariables.get(Integer.valueOf(buildDir.getName())), RateLimiter.create(1e9), progress));
+        assertEquals(1, progress.getFailures());
+        assertTrue(new File(kept, EnvInjectVarsStore.LEGACY_FILE_NAME).exists());
+    }
+
+    private static long legacyBuild(File jobDir, int number, String buildNumber, long lastModified) throws IOException {
+        File buildDir = new File(jobDir, String.valueOf(number));
+        Files.createDirectories(buildDir.toPath());
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> entry : variables(buildNumber).entrySet()) {
+            content.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        File file = new File(buildDir, EnvInjectVarsStore.LEGACY_FILE_NAME);
+        Files.write(file.toPath(), content.toString().getBytes(Charset.defaultCharset()));
+        assertTrue(file.setLastModified(lastModified));
+        return file.length();
+    }
+
+    private static Map<String, String> variables(String buildNumber) {
+        Map<String, String> variables = new LinkedHashMap<>();
+        for (int i = 0; i < 50; i++) {
+            variables.put("VAR_" + i, "/opt/tools/" + i);
+        }
+        variables.put("BUILD_NUMBER", buildNumber);
+        return variables;
+    }
+}
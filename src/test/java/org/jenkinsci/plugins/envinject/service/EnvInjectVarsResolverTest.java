@@ -0,0 +1,136 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EnvInjectVarsResolverTest {
+
+    @Test
+    void chainInReverseOrder() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("A", "$B/a");
+        variables.put("B", "${C}/b");
+        variables.put("C", "c");
+
+        Set<String> cyclicVars = EnvInjectVarsResolver.resolve(variables);
+
+        assertTrue(cyclicVars.isEmpty());
+        assertEquals("c/b/a", variables.get("A"));
+        assertEquals("c/b", variables.get("B"));
+        assertEquals("c", variables.get("C"));
+        assertEquals(Arrays.asList("A", "B", "C"), Arrays.asList(variables.keySet().toArray()));
+    }
+
+    @Test
+    void longChain() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        int size = 10000;
+        for (int i = 0; i < size - 1; i++) {
+            variables.put("VAR_" + i, "${VAR_" + (i + 1) + "}");
+        }
+        variables.put("VAR_" + (size - 1), "end");
+
+        EnvInjectVarsResolver.resolve(variables);
+
+        assertEquals("end", variables.get("VAR_0"));
+    }
+
+    @Test
+    void fanOut() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("X", "$ROOT-$ROOT");
+        variables.put("Y", "${ROOT}${X}");
+        variables.put("ROOT", "r");
+
+        EnvInjectVarsResolver.resolve(variables);
+
+        assertEquals("r-r", variables.get("X"));
+        assertEquals("rr-r", variables.get("Y"));
+    }
+
+    @Test
+    void selfReference() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("PATH", "$PATH:$EXTRA");
+        variables.put("EXTRA", "/opt/bin");
+
+        Set<String> cyclicVars = EnvInjectVarsResolver.resolve(variables);
+
+        assertTrue(cyclicVars.isEmpty());
+        assertEquals("$PATH:/opt/bin", variables.get("PATH"));
+    }
+
+    @Test
+    void cycle() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("A", "$B-$C");
+        variables.put("B", "$A");
+        variables.put("C", "c");
+        variables.put("D", "$A");
+
+        Set<String> cyclicVars = EnvInjectVarsResolver.resolve(variables);
+
+        assertEquals(new HashSet<>(Arrays.asList("A", "B")), cyclicVars);
+        assertEquals("$B-c", variables.get("A"));
+        assertEquals("$A", variables.get("B"));
+        assertEquals("$B-c", variables.get("D"));
+    }
+
+    @Test
+    void unknownAndEscapedReferences() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("A", "$$B ${UNKNOWN} $B");
+        variables.put("B", "b");
+        variables.put("C", null);
+
+        EnvInjectVarsResolver.resolve(variables);
+
+        assertEquals("b ${UNKNOWN} b", variables.get("A"));
+        assertNull(variables.get("C"));
+    }
+
+    @Test
+    void escapedReferencesLikeLegacyResolution() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("A", "$$B");
+        variables.put("D", "$$B-$C");
+        variables.put("E", "$$$$C");
+        variables.put("F", "$$UNKNOWN");
+        variables.put("G", "$$");
+        variables.put("B", "b");
+        variables.put("C", "c");
+
+        EnvInjectVarsResolver.resolve(variables);
+
+        assertEquals("b", variables.get("A"));
+        assertEquals("b-c", variables.get("D"));
+        assertEquals("c", variables.get("E"));
+        assertEquals("$UNKNOWN", variables.get("F"));
+        assertEquals("$", variables.get("G"));
+    }
+
+    @Test
+    void constants() {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("A", "$B-$C-$$");
+        variables.put("B", "$C");
+
+        Map<String, String> constants = new LinkedHashMap<>();
+        constants.put("A", "ignored");
+        constants.put("C", "c");
+
+        EnvInjectVarsResolver.resolve(variables, constants);
+
+        assertEquals("c-c-$", variables.get("A"));
+        assertEquals("c", variables.get("B"));
+    }
+}
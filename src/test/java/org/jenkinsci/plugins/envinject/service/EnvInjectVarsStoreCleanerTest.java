@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class EnvInjectVarsStoreCleanerTest {
+
+    @TempDir
+    File tmp;
+
+    @Test
+    void itemsAreFoundOnDisk() throws Exception {
+        File jobs = new File(tmp, "jobs");
+        File job = item(jobs, "job");
+        File folder = item(jobs, "folder");
+        File nested = item(new File(folder, "jobs"), "nested");
+        File branch = item(new File(item(new File(folder, "jobs"), "multibranch"), "branches"), "main");
+        // Not an item, and not a container of items
+        new File(jobs, "trash").mkdirs();
+        item(new File(job, "workspace"), "checkout");
+
+        List<File> itemDirs = new ArrayList<File>();
+        EnvInjectVarsStoreCleaner.findItemDirs(jobs, itemDirs);
+        assertEquals(new HashSet<File>(Arrays.asList(job, folder, nested, branch, new File(new File(folder, "jobs"), "multibranch"))),
+                new HashSet<File>(itemDirs));
+    }
+
+    @Test
+    void buildDirsAreNumbered() throws Exception {
+        File builds = new File(tmp, "builds");
+        new File(builds, "1").mkdirs();
+        new File(builds, "12").mkdirs();
+        new File(builds, "lastSuccessfulBuild").mkdirs();
+        Files.createFile(new File(builds, "legacyIds").toPath());
+
+        Set<File> buildDirs = new LinkedHashSet<File>();
+        EnvInjectVarsStoreCleaner.addBuildDirs(builds, buildDirs);
+        assertEquals(new HashSet<File>(Arrays.asList(new File(builds, "1").getAbsoluteFile(), new File(builds, "12").getAbsoluteFile())),
+                buildDirs);
+    }
+
+    private static File item(File parent, String name) throws IOException {
+        File dir = new File(parent, name);
+        dir.mkdirs();
+        Files.createFile(new File(dir, "config.xml").toPath());
+        return dir;
+    }
+}
@@ -0,0 +1,199 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.jenkinsci.plugins.envinject.util.OverlayEnvVars;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EnvInjectVarsStoreTest {
+
+    @TempDir
+    File tmp;
+
+    private EnvInjectVarsStore store;
+
+    @BeforeEach
+    void setUp() {
+        EnvInjectVarsStore.clearCache();
+        store = new EnvInjectVarsStore(new File(tmp, "store"));
+    }
+
+    @Test
+    void roundTrip() throws Exception {
+        File build = build(1);
+        Map<String, String> variables = variables(100, "1");
+        variables.put("EMPTY", "");
+        variables.put("UNICODE", "v\u00e4lue \u5bc6");
+        store.save(build, variables, null);
+
+        assertTrue(EnvInjectVarsStore.exists(build));
+        assertEquals(variables, store.load(build));
+
+        // Decoded from the files only
+        EnvInjectVarsStore.clearCache();
+        assertEquals(variables, store.load(build));
+    }
+
+    @Test
+    void similarBuildsShareTheBase() throws Exception {
+        File first = build(1);
+        store.save(first, variables(100, "1"), null);
+
+        File second = build(2);
+        Map<String, String> variables = variables(100, "1");
+        variables.put("BUILD_NUMBER", "2");
+        variables.remove("VAR_7");
+        store.save(second, variables, first);
+
+        assertEquals(EnvInjectVarsStore.readBaseId(first), EnvInjectVarsStore.readBaseId(second));
+        assertEquals(1, countBases());
+        EnvInjectVarsStore.clearCache();
+        assertEquals(variables, store.load(second));
+
+        // Loaded variables hold their difference only
+        OverlayEnvVars loadedFirst = assertInstanceOf(OverlayEnvVars.class, store.load(first));
+        OverlayEnvVars loadedSecond = assertInstanceOf(OverlayEnvVars.class, store.load(second));
+        assertSame(loadedFirst.getBase(), loadedSecond.getBase());
+        assertEquals(0, loadedFirst.getDifferenceCount());
+        assertEquals(2, loadedSecond.getDifferenceCount());
+    }
+
+    @Test
+    void newBaseWhenTheDifferenceIsLarge() throws Exception {
+        File first = build(1);
+        store.save(first, variables(100, "1"), null);
+
+        File second = build(2);
+        Map<String, String> variables = variables(100, "2");
+        store.save(second, variables, first);
+
+        assertNotEquals(EnvInjectVarsStore.readBaseId(first), EnvInjectVarsStore.readBaseId(second));
+        assertEquals(2, countBases());
+        assertEquals(variables, store.load(second));
+        assertEquals(variables(100, "1"), store.load(first));
+    }
+
+    @Test
+    void legacyFileIsRemoved() throws Exception {
+        File build = build(1);
+        File legacy = new File(build, EnvInjectVarsStore.LEGACY_FILE_NAME);
+        Files.write(legacy.toPath(), "A=B\n".getBytes(StandardCharsets.UTF_8));
+        store.save(build, variables(1, "1"), null);
+        assertFalse(legacy.exists());
+    }
+
+    @Test
+    void legacyFallback() throws Exception {
+        File build = build(1);
+        store.save(build, variables(10, "1"), null);
+        Map<String, String> variables = variables(10, "2");
+        variables.put("B", "x=y");
+        EnvInjectVarsStore.saveLegacy(build, variables);
+
+        // The older build file is replaced
+        assertFalse(EnvInjectVarsStore.exists(build));
+        assertEquals(variables, EnvInjectVarsConverter.readLegacyFile(new File(build, EnvInjectVarsStore.LEGACY_FILE_NAME)));
+    }
+
+    @Test
+    void missingFiles() throws Exception {
+        File build = build(1);
+        assertFalse(EnvInjectVarsStore.exists(build));
+        assertNull(store.load(build));
+        assertNull(EnvInjectVarsStore.readBaseId(build));
+
+        store.save(build, variables(10, "1"), null);
+        EnvInjectVarsStore.clearCache();
+        Files.delete(store.getBaseFile(EnvInjectVarsStore.readBaseId(build)).toPath());
+        assertThrows(IOException.class, () -> store.load(build));
+    }
+
+    @Test
+    void unreferencedBasesAreCollected() throws Exception {
+        File first = build(1);
+        store.save(first, variables(100, "1"), null);
+        File second = build(2);
+        store.save(second, variables(100, "2"), first);
+        File third = build(3);
+        store.save(third, variables(100, "2"), null);
+        assertEquals(2, countBases());
+
+        // Recent bases are kept
+        assertEquals(0, store.collectGarbage(List.of(second, third), TimeUnit.HOURS.toMillis(1)));
+        assertEquals(2, countBases());
+
+        // Deleted first build
+        assertTrue(store.collectGarbage(List.of(second, third), 0) > 0);
+        assertEquals(1, countBases());
+        EnvInjectVarsStore.clearCache();
+        assertEquals(variables(100, "2"), store.load(second));
+        assertEquals(variables(100, "2"), store.load(third));
+        assertEquals(0, store.collectGarbage(List.of(second, third), 0));
+    }
+
+    @Test
+    void reusedBasesAreNotCollected() throws Exception {
+        File first = build(1);
+        store.save(first, variables(100, "1"), null);
+        File base = store.getBaseFile(EnvInjectVarsStore.readBaseId(first));
+        long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        assertTrue(base.setLastModified(old));
+
+        // The references were counted before the first build was deleted and the next ones saved
+        List<File> counted = List.of();
+        File second = build(2);
+        Map<String, String> variables = variables(100, "1");
+        variables.put("BUILD_NUMBER", "2");
+        store.save(second, variables, first);
+        assertTrue(base.lastModified() > old);
+        assertTrue(base.setLastModified(old));
+        File third = build(3);
+        store.save(third, variables(100, "1"), null);
+        assertTrue(base.lastModified() > old);
+
+        assertEquals(0, store.collectGarbage(counted, TimeUnit.HOURS.toMillis(1)));
+        EnvInjectVarsStore.clearCache();
+        assertEquals(variables, store.load(second));
+        assertEquals(variables(100, "1"), store.load(third));
+    }
+
+    private long countBases() throws IOException {
+        try (Stream<Path> files = Files.walk(store.getStoreDir().toPath())) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private File build(int number) throws IOException {
+        File dir = new File(tmp, "builds/" + number);
+        Files.createDirectories(dir.toPath());
+        return dir;
+    }
+
+    private static Map<String, String> variables(int count, String value) {
+        Map<String, String> variables = new TreeMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            variables.put("VAR_" + i, "/opt/tools/" + i + "/" + value);
+        }
+        return variables;
+    }
+}
@@ -0,0 +1,63 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+import org.jenkinsci.lib.envinject.EnvInjectLogger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@WithJenkins
+class EnvironmentVariablesNodeLoaderTest {
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+    }
+
+    @Test
+    void configurationChangesAreVisible() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        EnvInjectLogger logger = new EnvInjectLogger(TaskListener.NULL);
+
+        j.jenkins.getGlobalNodeProperties().add(new EnvironmentVariablesNodeProperty(
+                new EnvironmentVariablesNodeProperty.Entry("GLOBAL", "global1")));
+        Map<String, String> vars = EnvironmentVariablesNodeLoader.gatherEnvVarsForNode(build, j.jenkins, logger);
+        assertEquals("global1", vars.get("GLOBAL"));
+
+        // The returned map is owned by the caller
+        vars.put("GLOBAL", "modified");
+        assertEquals("global1", EnvironmentVariablesNodeLoader.gatherEnvVarsForNode(build, j.jenkins, logger).get("GLOBAL"));
+
+        j.jenkins.getGlobalNodeProperties().replace(new EnvironmentVariablesNodeProperty(
+                new EnvironmentVariablesNodeProperty.Entry("GLOBAL", "global2")));
+        assertEquals("global2", EnvironmentVariablesNodeLoader.gatherEnvVarsForNode(build, j.jenkins, logger).get("GLOBAL"));
+    }
+
+    @Test
+    void nodePropertiesOverrideGlobalOnes() throws Exception {
+        j.jenkins.getGlobalNodeProperties().add(new EnvironmentVariablesNodeProperty(
+                new EnvironmentVariablesNodeProperty.Entry("VAR", "global")));
+        DumbSlave agent = j.createOnlineSlave();
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+        EnvInjectLogger logger = new EnvInjectLogger(TaskListener.NULL);
+
+        assertEquals("global", EnvironmentVariablesNodeLoader.gatherEnvVarsForNode(build, agent, logger).get("VAR"));
+
+        agent.getNodeProperties().add(new EnvironmentVariablesNodeProperty(
+                new EnvironmentVariablesNodeProperty.Entry("VAR", "node")));
+        assertEquals("node", EnvironmentVariablesNodeLoader.gatherEnvVarsForNode(build, agent, logger).get("VAR"));
+    }
+}
@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PropertiesFileCacheTest {
+
+    @TempDir
+    File tmp;
+
+    @AfterEach
+    void clear() {
+        PropertiesFileCache.clear();
+    }
+
+    @Test
+    void unchangedFileIsNotParsedAgain() throws Exception {
+        File file = write("env.properties", "A=1\nB=$A\n", 10000);
+
+        Map<String, String> entries = PropertiesFileCache.getEntries(file);
+
+        assertEquals("$A", entries.get("B"));
+        assertSame(entries, PropertiesFileCache.getEntries(file));
+        assertSame(entries, PropertiesFileCache.getEntries(new File(tmp, "./env.properties")));
+    }
+
+    @Test
+    void modifiedFileIsParsedAgain() throws Exception {
+        File file = write("env.properties", "A=1\n", 10000);
+        Map<String, String> entries = PropertiesFileCache.getEntries(file);
+
+        write("env.properties", "A=12\n", 5000);
+
+        assertEquals("12", PropertiesFileCache.getEntries(file).get("A"));
+        assertEquals("1", entries.get("A"));
+    }
+
+    @Test
+    void recentModificationIsVerifiedByContent() throws Exception {
+        File file = write("env.properties", "A=1\n", 0);
+        long lastModified = file.lastModified();
+        Map<String, String> entries = PropertiesFileCache.getEntries(file);
+        assertSame(entries, PropertiesFileCache.getEntries(file));
+
+        // Same size and same modification time
+        write("env.properties", "A=2\n", 0);
+        file.setLastModified(lastModified);
+
+        Map<String, String> modified = PropertiesFileCache.getEntries(file);
+        assertNotSame(entries, modified);
+        assertEquals("2", modified.get("A"));
+    }
+
+    @Test
+    void removedFile() throws Exception {
+        File file = write("env.properties", "A=1\n", 10000);
+        PropertiesFileCache.getEntries(file);
+
+        Files.delete(file.toPath());
+
+        assertNull(PropertiesFileCache.getEntries(file));
+    }
+
+    @Test
+    void unreadableFileIsAnError() throws Exception {
+        File dir = new File(tmp, "dir.properties");
+        Files.createDirectory(dir.toPath());
+
+        assertThrows(IOException.class, () -> PropertiesFileCache.getEntries(dir));
+    }
+
+    private File write(String name, String content, long ageMillis) throws Exception {
+        File file = new File(tmp, name);
+        Files.write(file.toPath(), content.getBytes(Charset.defaultCharset()));
+        if (ageMillis > 0) {
+            file.setLastModified(System.currentTimeMillis() - ageMillis);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins.envinject.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PropertiesStreamParserTest {
+
+    @Test
+    void windowsPaths() throws Exception {
+        Map<String, String> vars = PropertiesStreamParser.parse(new StringReader(
+                "PATH=C:\\Windows\\System32\n" +
+                "SHARE=\\\\server\\share\\dir\n" +
+                "ESCAPED=a\\:b\\nc\n" +
+                "UNICODE=x\\u0041\n"));
+
+        assertEquals("C:\\Windows\\System32", vars.get("PATH"));
+        assertEquals("\\\\server\\share\\dir", vars.get("SHARE"));
+        assertEquals("a:b\nc", vars.get("ESCAPED"));
+        assertEquals("x\\u0041", vars.get("UNICODE"));
+        assertEquals(legacyParse("PATH=C:\\Windows\\System32\nSHARE=\\\\server\\share\\dir\n"),
+                PropertiesStreamParser.parse(new StringReader("PATH=C:\\Windows\\System32\nSHARE=\\\\server\\share\\dir\n")));
+    }
+
+    @Test
+    void fileOrder() throws Exception {
+        Map<String, String> vars = PropertiesStreamParser.parse(new StringReader("C=1\nA=2\nB=3\nC=4\n"));
+
+        assertEquals(Arrays.asList("C", "A", "B"), new ArrayList<>(vars.keySet()));
+        assertEquals("4", vars.get("C"));
+    }
+
+    @Test
+    void malformedUnicode() {
+        // Only a backslash preceded by another one is not doubled
+        assertThrows(IllegalArgumentException.class, () -> PropertiesStreamParser.parse(new StringReader("A=x\\\\\\uZZZZ")));
+        assertThrows(IllegalArgumentException.class, () -> legacyParse("A=x\\\\\\uZZZZ"));
+    }
+
+    @Test
+    void smallReads() throws Exception {
+        String content = "A=C:\\dir\\\r\n  continued\nB=\\\\host\\share\r# comment\\\n!other\nC d\\\\\n";
+        assertEquals(legacyParse(content), PropertiesStreamParser.parse(new OneCharReader(content)));
+    }
+
+    @Test
+    void sameAsRegularExpressionsAndPropertiesLoad() throws Exception {
+        char[] alphabet = {'\\', '\\', '\\', '=', '=', 'n', 'u', '0', 'A', ':', '/', '*', '#', '!', ' ', '\t',
+                '\n', '\n', '\r', '\u2028', '\u0085', 'x', 'y'};
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder content = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                content.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            String text = content.toString();
+
+            Map<String, String> expected;
+            try {
+                expected = legacyParse(text);
+            } catch (IllegalArgumentException e) {
+                assertThrows(IllegalArgumentException.class, () -> PropertiesStreamParser.parse(new StringReader(text)), text);
+                continue;
+            }
+            assertEquals(expected, PropertiesStreamParser.parse(new StringReader(text)), text);
+            assertEquals(expected, PropertiesStreamParser.parse(new OneCharReader(text)), text);
+        }
+    }
+
+    /**
+     * Former implementation of {@link PropertiesLoader}.
+     */
+    private static Map<String, String> legacyParse(String content) throws IOException {
+        String escapedContent = content;
+        escapedContent = escapedContent.replaceAll("(?<![\\\\])\\\\(?![n:*?\"<>\\\\/])(?![\\\\])(?![\n])", "\\\\\\\\");
+        escapedContent = escapedContent.replaceAll("(?m)^([^=]+=)(\\\\\\\\)(?![:*?\"<>\\\\/])", "$1\\\\\\\\\\\\\\\\");
+
+        Properties properties = new Properties();
+        properties.load(new StringReader(escapedContent));
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+            result.put((String) entry.getKey(), (String) entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Returns a single character per read, so buffer boundaries are everywhere.
+     */
+    private static final class OneCharReader extends Reader {
+
+        private final String content;
+
+        private int position;
+
+        OneCharReader(String content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (position >= content.length()) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            cbuf[off] = content.charAt(position++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.envinject.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LayeredEnvVarsTest {
+
+    @Test
+    void topmostLayerWins() {
+        LayeredEnvVars base = LayeredEnvVars.of(map("A", "a", "B", "b"));
+        LayeredEnvVars view = base.with(map("B", "b2", "C", "c"));
+
+        assertEquals("a", view.get("A"));
+        assertEquals("b2", view.get("B"));
+        assertEquals("c", view.get("C"));
+        assertNull(view.get("D"));
+        assertTrue(view.containsKey("A"));
+        assertFalse(view.containsKey("D"));
+        assertEquals(3, view.size());
+
+        // Lower layers are not affected
+        assertEquals("b", base.get("B"));
+        assertFalse(base.containsKey("C"));
+    }
+
+    @Test
+    void iterationOrderMatchesLinkedHashMap() {
+        Map<String, String> expected = new LinkedHashMap<>();
+        LayeredEnvVars view = LayeredEnvVars.empty();
+        for (int i = 0; i < 3 * LayeredEnvVars.MAX_DEPTH; i++) {
+            Map<String, String> layer = map("K" + i, "v" + i, "K" + (i / 2), "w" + i);
+            expected.putAll(layer);
+            view = view.with(layer);
+        }
+
+        assertEquals(new ArrayList<>(expected.entrySet()), new ArrayList<>(view.entrySet()));
+        assertEquals(expected, view.materialize());
+        assertEquals(expected, view);
+    }
+
+    @Test
+    void emptyLayerIsNotAdded() {
+        LayeredEnvVars view = LayeredEnvVars.of(map("A", "a"));
+        assertSame(view, view.with(new HashMap<>()));
+        assertSame(view, LayeredEnvVars.of(view));
+        assertTrue(LayeredEnvVars.empty().isEmpty());
+    }
+
+    @Test
+    void select() {
+        LayeredEnvVars view = LayeredEnvVars.of(map("A", "$X", "B", "$Y", "C", "$Z"))
+                .with(map("B", "b"))
+                .with(map("C", "$W", "D", "$V"));
+
+        Map<String, String> selected = view.select(value -> value.startsWith("$"));
+
+        assertEquals(Arrays.asList("A", "C", "D"), new ArrayList<>(selected.keySet()));
+        assertEquals("$W", selected.get("C"));
+    }
+
+    @Test
+    void viewIsImmutable() {
+        LayeredEnvVars view = LayeredEnvVars.of(map("A", "a"));
+        assertThrows(UnsupportedOperationException.class, () -> view.put("B", "b"));
+        assertThrows(UnsupportedOperationException.class, () -> view.entrySet().iterator().next().setValue("b"));
+    }
+
+    @Test
+    void overlay() {
+        LayeredEnvVars base = LayeredEnvVars.of(map("A", "a", "B", "b"));
+        LayeredEnvVars.Overlay overlay = base.newOverlay();
+
+        assertEquals("b", overlay.put("B", "b2"));
+        assertNull(overlay.put("C", "c"));
+        assertEquals("a", overlay.get("A"));
+        assertEquals("b2", overlay.get("B"));
+
+        LayeredEnvVars view = overlay.toView();
+        overlay.put("D", "d");
+
+        assertEquals(map("A", "a", "B", "b2", "C", "c"), view);
+        assertEquals("b", base.get("B"));
+    }
+
+    @Test
+    void serializedAsLinkedHashMap() throws Exception {
+        LayeredEnvVars view = LayeredEnvVars.of(map("A", "a")).with(map("B", "b"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(view);
+        }
+        Object copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = in.readObject();
+        }
+
+        assertInstanceOf(LinkedHashMap.class, copy);
+        assertEquals(view, copy);
+    }
+
+    private static Map<String, String> map(String... keysAndValues) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            result.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.envinject.util;
+
+import hudson.Util;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MacroTemplateTest {
+
+    @Test
+    void referencedNames() {
+        MacroTemplate template = MacroTemplate.compile("$A-${B.C}$$E$D.F${G");
+        assertTrue(template.hasReferences());
+        assertEquals(Arrays.asList("A", "B.C", "D"), template.getReferencedNames());
+        assertFalse(MacroTemplate.compile("no references $ $$A ${}").hasReferences());
+    }
+
+    @Test
+    void expand() {
+        Map<String, String> variables = new HashMap<>();
+        variables.put("A", "$B");
+        variables.put("B.C", "bc");
+
+        assertEquals("$B-bc-$D.F $E ${G", MacroTemplate.expand("$A-${B.C}-$D.F $$E ${G", variables));
+        assertEquals("${UNKNOWN}", MacroTemplate.expand("${UNKNOWN}", variables));
+        assertEquals("", MacroTemplate.expand("$A", name -> ""));
+        assertNull(MacroTemplate.expand(null, variables));
+        assertEquals("$A", MacroTemplate.expand("$A", (Map<String, String>) null));
+    }
+
+    @Test
+    void valueWithoutReferencesIsReturnedAsIs() {
+        String value = "no references";
+        assertSame(value, MacroTemplate.expand(value, new HashMap<>()));
+    }
+
+    @Test
+    void compiledTemplatesAreCached() {
+        assertSame(MacroTemplate.compile("cached-$A"), MacroTemplate.compile("cached-$A"));
+    }
+
+    @Test
+    void longValuesAreNotCached() {
+        StringBuilder value = new StringBuilder("$A");
+        while (value.length() <= MacroTemplate.MAX_CACHED_LENGTH) {
+            value.append("-long");
+        }
+        MacroTemplate template = MacroTemplate.compile(value.toString());
+        assertNotSame(template, MacroTemplate.compile(value.toString()));
+        assertEquals(Arrays.asList("A"), template.getReferencedNames());
+    }
+
+    @Test
+    void sameResultAsReplaceMacro() {
+        Map<String, String> variables = new HashMap<>();
+        variables.put("A", "[a$B]");
+        variables.put("AB", "ab");
+        variables.put("B.x", "bx");
+        variables.put("_", "u");
+
+        String alphabet = "$${}AB_.x-";
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder value = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            assertEquals(Util.replaceMacro(value.toString(), variables), MacroTemplate.expand(value.toString(), variables),
+                    "Unexpected expansion of " + value);
+        }
+    }
+}
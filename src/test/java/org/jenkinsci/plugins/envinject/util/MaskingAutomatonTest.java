@@ -0,0 +1,152 @@
+package org.jenkinsci.plugins.envinject.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MaskingAutomatonTest {
+
+    private static final String MASK = "[*******]";
+
+    @Test
+    void nothingToMask() {
+        assertNull(MaskingAutomaton.compile(null, StandardCharsets.UTF_8, MASK));
+        assertNull(MaskingAutomaton.compile(Arrays.asList(null, ""), StandardCharsets.UTF_8, MASK));
+    }
+
+    @Test
+    void leftmostLongest() {
+        assertEquals("x[*******]y", mask("xabcy", "ab", "abc"));
+        assertEquals("x[*******]y", mask("xabcy", "abc", "ab"));
+        assertEquals("[*******]d", mask("abcd", "abc", "bcd"));
+        assertEquals("[*******]", mask("abcd", "bc", "abcd"));
+        assertEquals("[*******]cd", mask("abcd", "bcd", "abcdX", "ab"));
+        assertEquals("[*******][*******]", mask("aaaa", "aa"));
+        assertEquals("[*******][*******]a", mask("aaaaa", "aa"));
+        assertEquals("no match", mask("no match", "secret"));
+        assertEquals("[*******] and [*******]\n", mask("secret and secret\n", "secret"));
+    }
+
+    @Test
+    void multibyteCharacters() {
+        assertEquals("pass: [*******], [*******]", mask("pass: m\u00f6tley, \u5bc6\u7801", "m\u00f6tley", "\u5bc6\u7801"));
+        assertEquals("\u00e9[*******]\u00e9", mask("\u00e9a\u00e9\u00e9", "a\u00e9"));
+    }
+
+    @Test
+    void singleByteCharset() {
+        Charset latin1 = StandardCharsets.ISO_8859_1;
+        MaskingAutomaton automaton = MaskingAutomaton.compile(Arrays.asList("gr\u00f6\u00dfe", "\u5bc6\u7801"), latin1, MASK);
+        assertArrayEquals("size=[*******]".getBytes(latin1), automaton.mask("size=gr\u00f6\u00dfe".getBytes(latin1)));
+    }
+
+    @Test
+    void unsupportedCharset() {
+        assertTrue(MaskingAutomaton.supports(StandardCharsets.UTF_8));
+        assertTrue(MaskingAutomaton.supports(StandardCharsets.US_ASCII));
+        assertFalse(MaskingAutomaton.supports(StandardCharsets.UTF_16));
+        assertThrows(IllegalArgumentException.class,
+                () -> MaskingAutomaton.compile(Collections.singleton("a"), StandardCharsets.UTF_16, MASK));
+    }
+
+    @Test
+    void tooLargeTable() {
+        StringBuilder password = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            password.append((char) (i % 128));
+        }
+        List<String> passwords = Collections.singletonList(password.toString());
+        assertTrue(MaskingAutomaton.fits(Collections.singleton("secret"), StandardCharsets.UTF_8));
+        assertFalse(MaskingAutomaton.fits(passwords, StandardCharsets.UTF_8));
+        assertThrows(IllegalArgumentException.class, () -> MaskingAutomaton.get(passwords, StandardCharsets.UTF_8, MASK));
+    }
+
+    @Test
+    void cachedPerPasswordSet() {
+        MaskingAutomaton.clearCache();
+        MaskingAutomaton automaton = MaskingAutomaton.get(Arrays.asList("b", "a", "b"), StandardCharsets.UTF_8, MASK);
+        assertSame(automaton, MaskingAutomaton.get(Arrays.asList("a", "b", ""), StandardCharsets.UTF_8, MASK));
+        assertNotSame(automaton, MaskingAutomaton.get(Arrays.asList("a", "bc"), StandardCharsets.UTF_8, MASK));
+        assertNotSame(automaton, MaskingAutomaton.get(Arrays.asList("a", "b"), StandardCharsets.UTF_8, "***"));
+        assertNull(MaskingAutomaton.get(Collections.singleton(""), StandardCharsets.UTF_8, MASK));
+        assertEquals("x[*******]y[*******]", new String(automaton.mask("xayb".getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void fingerprintOfPasswordSet() {
+        Set<String> passwords = new TreeSet<String>(Arrays.asList("ab", "c"));
+        String fingerprint = MaskingAutomaton.fingerprint(passwords, StandardCharsets.UTF_8, MASK);
+        assertEquals(fingerprint, MaskingAutomaton.fingerprint(passwords, StandardCharsets.UTF_8, MASK));
+        // Length prefixes keep the boundaries between passwords
+        assertNotEquals(fingerprint, MaskingAutomaton.fingerprint(
+                new TreeSet<String>(Arrays.asList("a", "bc")), StandardCharsets.UTF_8, MASK));
+    }
+
+    @Test
+    void parityWithRegex() {
+        Random random = new Random(42);
+        String alphabet = "abc\u00e9\u5bc6 ";
+        for (int run = 0; run < 20000; run++) {
+            List<String> passwords = new ArrayList<String>();
+            int count = 1 + random.nextInt(6);
+            for (int i = 0; i < count; i++) {
+                passwords.add(randomString(random, alphabet, 1 + random.nextInt(4)));
+            }
+            String text = randomString(random, alphabet, random.nextInt(40));
+            assertEquals(regexMask(text, passwords), mask(text, passwords.toArray(new String[0])),
+                    "passwords=" + passwords + ", text=" + text);
+        }
+    }
+
+    private static String mask(String text, String... passwords) {
+        MaskingAutomaton automaton = MaskingAutomaton.compile(Arrays.asList(passwords), StandardCharsets.UTF_8, MASK);
+        return new String(automaton.mask(text.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The alternation regex gives leftmost-longest matches when the longest passwords come first.
+     */
+    private static String regexMask(String text, Collection<String> passwords) {
+        List<String> sorted = new ArrayList<String>(passwords);
+        sorted.sort(Comparator.comparingInt(String::length).reversed());
+        StringBuilder regex = new StringBuilder();
+        for (String password : sorted) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append(Pattern.quote(password));
+        }
+        return Pattern.compile(regex.toString()).matcher(text).replaceAll(Matcher.quoteReplacement(MASK));
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+}
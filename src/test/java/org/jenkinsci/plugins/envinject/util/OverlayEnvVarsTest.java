@@ -0,0 +1,123 @@
+package org.jenkinsci.plugins.envinject.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OverlayEnvVarsTest {
+
+    @Test
+    void onlyDifferencesAreHeld() {
+        Map<String, String> base = Collections.unmodifiableMap(map("A", "a", "B", "b", "C", "c"));
+        OverlayEnvVars vars = new OverlayEnvVars(base);
+        assertEquals(base, vars);
+        assertEquals(0, vars.getDifferenceCount());
+
+        assertEquals("b", vars.put("B", "b2"));
+        assertNull(vars.put("D", "d"));
+        assertEquals("c", vars.remove("C"));
+        assertEquals(map("A", "a", "B", "b2", "D", "d"), vars);
+        assertFalse(vars.containsKey("C"));
+        assertEquals(3, vars.getDifferenceCount());
+
+        // Back to the base values
+        vars.put("B", "b");
+        vars.put("C", "c");
+        vars.remove("D");
+        assertEquals(base, vars);
+        assertEquals(0, vars.getDifferenceCount());
+        assertSame(base, vars.getBase());
+    }
+
+    @Test
+    void sameAsLinkedHashMap() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            Map<String, String> base = new LinkedHashMap<>();
+            for (int i = 0; i < random.nextInt(10); i++) {
+                base.put("K" + random.nextInt(15), "v" + random.nextInt(3));
+            }
+            Map<String, String> expected = new LinkedHashMap<>(base);
+            OverlayEnvVars vars = new OverlayEnvVars(Collections.unmodifiableMap(base));
+            for (int op = 0; op < 30; op++) {
+                String key = "K" + random.nextInt(15);
+                switch (random.nextInt(4)) {
+                    case 0:
+                        assertEquals(expected.remove(key), vars.remove(key));
+                        break;
+                    case 1:
+                        expected.clear();
+                        vars.clear();
+                        break;
+                    default:
+                        String value = random.nextInt(5) == 0 ? null : "v" + random.nextInt(3);
+                        assertEquals(expected.put(key, value), vars.put(key, value));
+                }
+                assertEquals(expected.size(), vars.size());
+                assertEquals(expected.containsKey(key), vars.containsKey(key));
+                assertEquals(expected.get(key), vars.get(key));
+            }
+            assertEquals(expected, vars);
+            assertEquals(expected.keySet(), new LinkedHashMap<>(vars).keySet());
+            assertEquals(expected.size(), new ArrayList<>(vars.entrySet()).size());
+        }
+    }
+
+    @Test
+    void baseOrderIsKept() {
+        OverlayEnvVars vars = new OverlayEnvVars(map("A", "a", "B", "b", "C", "c"));
+        vars.put("Z", "z");
+        vars.put("B", "b2");
+        vars.remove("A");
+        assertEquals(new ArrayList<>(map("B", "b2", "C", "c", "Z", "z").entrySet()), new ArrayList<>(vars.entrySet()));
+    }
+
+    @Test
+    void stringsAreInterned() {
+        String value = new String(new char[] {'v', 'a', 'l'});
+        assertSame(OverlayEnvVars.intern("val"), OverlayEnvVars.intern(value));
+        Map<String, String> interned = OverlayEnvVars.internAll(map("K", value));
+        assertSame(OverlayEnvVars.intern("val"), interned.get("K"));
+        assertNull(OverlayEnvVars.intern(null));
+    }
+
+    @Test
+    void serializedAsMap() throws Exception {
+        OverlayEnvVars vars = new OverlayEnvVars(map("A", "a"));
+        vars.put("B", "b");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(vars);
+        }
+        Object copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = in.readObject();
+        }
+        assertInstanceOf(LinkedHashMap.class, copy);
+        assertEquals(vars, copy);
+        assertTrue(((Map<?, ?>) copy).containsKey("B"));
+    }
+
+    private static Map<String, String> map(String... keyValues) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put(keyValues[i], keyValues[i + 1]);
+        }
+        return map;
+    }
+}
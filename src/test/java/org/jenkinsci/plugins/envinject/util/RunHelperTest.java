@@ -0,0 +1,132 @@
+package org.jenkinsci.plugins.envinject.util;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.EnvironmentContributor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.lib.envinject.EnvInjectLogger;
+import org.jenkinsci.plugins.envinject.service.EnvInjectActionSetter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+@WithJenkins
+class RunHelperTest {
+
+    private JenkinsRule j;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) {
+        j = rule;
+    }
+
+    @Test
+    void buildVariablesAreSharedWhileBuilding() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        VariablesBuilder builder = new VariablesBuilder();
+        project.getBuildersList().add(builder);
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        // Same state, the contributors are not called again
+        assertEquals(1, builder.calls.get(1) - builder.calls.get(0));
+        assertEquals(builder.calls.get(1), builder.calls.get(2));
+        assertNull(builder.variables.get(1).get("COUNTER_VAR"), "the caller's modification must not be shared");
+
+        // A new action changes the state of the run
+        assertEquals(builder.calls.get(2) + 1, (int) builder.calls.get(3));
+        assertEquals("action", builder.variables.get(2).get("ACTION_VAR"));
+
+        // A replaced action too
+        assertEquals(builder.calls.get(3) + 1, (int) builder.calls.get(4));
+
+        // Explicit invalidation
+        assertEquals(builder.calls.get(4) + 1, (int) builder.calls.get(5));
+
+        // Injections invalidate the variables
+        assertEquals(builder.calls.get(5) + 1, (int) builder.calls.get(6));
+
+        // Completed builds are not memoized
+        EnvInjectLogger logger = new EnvInjectLogger(TaskListener.NULL);
+        int before = CountingContributor.CALLS.get();
+        RunHelper.getBuildVariables(build, logger);
+        RunHelper.getBuildVariables(build, logger);
+        assertEquals(before + 2, CountingContributor.CALLS.get());
+    }
+
+    private static final class VariablesBuilder extends TestBuilder {
+
+        private final List<Integer> calls = new ArrayList<Integer>();
+
+        private final List<Map<String, String>> variables = new ArrayList<Map<String, String>>();
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+            EnvInjectLogger logger = new EnvInjectLogger(listener);
+            try {
+                // Drop what has been computed during the environment setup
+                RunHelper.invalidateBuildVariables(build);
+                calls.add(CountingContributor.CALLS.get());
+                Map<String, String> first = RunHelper.getBuildVariables(build, logger);
+                first.put("COUNTER_VAR", "modified");
+                record(build, logger);
+                record(build, logger);
+
+                build.addAction(new VariableAction());
+                record(build, logger);
+
+                build.replaceAction(new VariableAction());
+                record(build, logger);
+
+                RunHelper.invalidateBuildVariables(build);
+                record(build, logger);
+
+                new EnvInjectActionSetter(null).addEnvVarsToRun(build, Collections.singletonMap("INJECTED", "value"));
+                record(build, logger);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+            return true;
+        }
+
+        private void record(AbstractBuild<?, ?> build, EnvInjectLogger logger) throws Exception {
+            Map<String, String> vars = RunHelper.getBuildVariables(build, logger);
+            calls.add(CountingContributor.CALLS.get());
+            variables.add(vars);
+        }
+    }
+
+    public static class VariableAction extends InvisibleAction {
+    }
+
+    @TestExtension
+    public static class CountingContributor extends EnvironmentContributor {
+
+        static final AtomicInteger CALLS = new AtomicInteger();
+
+        @Override
+        public void buildEnvironmentFor(Run r, EnvVars envs, TaskListener listener) {
+            CALLS.incrementAndGet();
+            if (r.getAction(VariableAction.class) != null) {
+                envs.put("ACTION_VAR", "action");
+            }
+        }
+    }
+}